@@ -0,0 +1,152 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Parsed representation of the <code>Cache-Control</code> header sent by a
+ * remote soffit.  Only the directives the connector acts upon are recognized;
+ * others are ignored.
+ */
+public final class CacheControl {
+
+    public static final String PUBLIC = "public";
+    public static final String PRIVATE = "private";
+    public static final String NO_CACHE = "no-cache";
+    public static final String NO_STORE = "no-store";
+    public static final String MAX_AGE = "max-age";
+    public static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+    public static final String STALE_IF_ERROR = "stale-if-error";
+
+    private boolean publicScope;
+    private boolean privateScope;
+    private boolean noCache;
+    private boolean noStore;
+    private int maxAge = -1;
+    private int staleWhileRevalidate;
+    private int staleIfError;
+
+    /**
+     * Parses the specified header value.  Malformed directives are skipped.
+     */
+    public static CacheControl parse(String headerValue) {
+
+        final CacheControl rslt = new CacheControl();
+        if (headerValue == null) {
+            return rslt;
+        }
+
+        for (String token : headerValue.split(",")) {
+            final String directive = token.trim().toLowerCase();
+            final int equalsIndex = directive.indexOf('=');
+            final String name = equalsIndex == -1 ? directive : directive.substring(0, equalsIndex).trim();
+            final String value = equalsIndex == -1 ? null : StringUtils.strip(directive.substring(equalsIndex + 1).trim(), "\"");
+            switch (name) {
+                case PUBLIC:
+                    rslt.publicScope = true;
+                    break;
+                case PRIVATE:
+                    rslt.privateScope = true;
+                    break;
+                case NO_CACHE:
+                    rslt.noCache = true;
+                    break;
+                case NO_STORE:
+                    rslt.noStore = true;
+                    break;
+                case MAX_AGE:
+                    rslt.maxAge = parseSeconds(value, -1);
+                    break;
+                case STALE_WHILE_REVALIDATE:
+                    rslt.staleWhileRevalidate = parseSeconds(value, 0);
+                    break;
+                case STALE_IF_ERROR:
+                    rslt.staleIfError = parseSeconds(value, 0);
+                    break;
+                default:
+                    // Not a directive we use
+                    break;
+            }
+        }
+
+        return rslt;
+
+    }
+
+    /**
+     * True if the response may be stored by the connector, which (at present)
+     * requires an explicit scope and a positive <code>max-age</code>.
+     */
+    public boolean isCacheable() {
+        return !noCache && !noStore && maxAge > 0 && (publicScope || privateScope);
+    }
+
+    public boolean isPublic() {
+        return publicScope && !privateScope;
+    }
+
+    public boolean isPrivate() {
+        return privateScope;
+    }
+
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /**
+     * @return The value of <code>max-age</code> in seconds, or -1 if not specified
+     */
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public int getStaleIfError() {
+        return staleIfError;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheControl [publicScope=" + publicScope + ", privateScope=" + privateScope + ", noCache=" + noCache
+                + ", noStore=" + noStore + ", maxAge=" + maxAge + ", staleWhileRevalidate=" + staleWhileRevalidate
+                + ", staleIfError=" + staleIfError + "]";
+    }
+
+    /*
+     * Implementation
+     */
+
+    private static int parseSeconds(String value, int defaultValue) {
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apereo.portlet.soffit.connector.SoffitConnectorController.CacheTuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Indexes the entries of the soffit response cache by the cache tags (also
+ * known as surrogate keys) that soffits attach to their responses with the
+ * <code>X-Soffit-CacheTags</code> header.  Purging a tag removes every cached
+ * response that carries it, so soffits may use long TTLs and still have new
+ * content appear immediately when it's published.  Purges are requested over
+ * JMX (e.g. by a publishing workflow, through an HTTP-to-JMX bridge).<p>
+ *
+ * The index follows the cache, so entries that are evicted, expire, or are
+ * removed by other means drop out of it.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=CacheTagIndex")
+public class CacheTagIndex implements CacheEventListener {
+
+    private final ConcurrentMap<String,Set<CacheTuple>> keysByTag = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CacheTuple,Set<String>> tagsByKey = new ConcurrentHashMap<>();
+
+    @Autowired
+    @Qualifier(value="org.apereo.portlet.soffit.connector.SoffitConnectorController.RESPONSE_CACHE")
+    private Cache responseCache;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @PostConstruct
+    public void init() {
+        responseCache.getCacheEventNotificationService().registerListener(this);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        responseCache.getCacheEventNotificationService().unregisterListener(this);
+    }
+
+    /**
+     * Parses the value of the header, which is a list of tags separated by
+     * commas or whitespace.
+     */
+    public static Set<String> parseTags(String value) {
+        final String[] tokens = StringUtils.split(StringUtils.defaultString(value), ", \t");
+        if (tokens.length == 0) {
+            return Collections.emptySet();
+        }
+        final Set<String> rslt = new HashSet<>();
+        Collections.addAll(rslt, tokens);
+        return rslt;
+    }
+
+    /**
+     * Associates the cache entry with the specified tags, replacing any tags it
+     * was associated with previously.
+     */
+    public void index(CacheTuple key, Set<String> tags) {
+        unindex(key);
+        if (tags.isEmpty()) {
+            return;
+        }
+        tagsByKey.put(key, tags);
+        for (String tag : tags) {
+            Set<CacheTuple> keys = keysByTag.get(tag);
+            if (keys == null) {
+                final Set<CacheTuple> created = Collections.newSetFromMap(new ConcurrentHashMap<CacheTuple,Boolean>());
+                keys = keysByTag.putIfAbsent(tag, created);
+                if (keys == null) {
+                    keys = created;
+                }
+            }
+            keys.add(key);
+        }
+    }
+
+    @ManagedOperation(description="Removes every cached soffit response that carries the specified tag;  "
+            + "returns the number of responses removed")
+    public int purge(String tag) {
+        final Set<CacheTuple> keys = keysByTag.get(tag);
+        if (keys == null) {
+            return 0;
+        }
+        int rslt = 0;
+        for (CacheTuple key : new ArrayList<>(keys)) {
+            if (responseCache.remove(key)) {
+                rslt++;
+            }
+            unindex(key);
+        }
+        logger.info("Purged {} cached soffit responses with tag '{}'", rslt, tag);
+        return rslt;
+    }
+
+    @ManagedAttribute(description="The tags of cached soffit responses")
+    public String[] getTags() {
+        return keysByTag.keySet().toArray(new String[0]);
+    }
+
+    @ManagedOperation(description="Returns the number of cached soffit responses with the specified tag")
+    public int getTaggedResponseCount(String tag) {
+        final Set<CacheTuple> keys = keysByTag.get(tag);
+        return keys != null ? keys.size() : 0;
+    }
+
+    /*
+     * CacheEventListener
+     */
+
+    @Override
+    public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+        unindex(element.getObjectKey());
+    }
+
+    @Override
+    public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+        // Indexed by the SoffitConnectorController, which knows the tags
+    }
+
+    @Override
+    public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+        // Indexed by the SoffitConnectorController, which knows the tags
+    }
+
+    @Override
+    public void notifyElementExpired(Ehcache cache, Element element) {
+        unindex(element.getObjectKey());
+    }
+
+    @Override
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+        unindex(element.getObjectKey());
+    }
+
+    @Override
+    public void notifyRemoveAll(Ehcache cache) {
+        keysByTag.clear();
+        tagsByKey.clear();
+    }
+
+    @Override
+    public void dispose() {
+        // Nothing to release
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException("CacheTagIndex is bound to the SoffitConnectorController's cache");
+    }
+
+    /*
+     * Implementation
+     */
+
+    private void unindex(Object key) {
+        final Collection<String> tags = tagsByKey.remove(key);
+        if (tags == null) {
+            return;
+        }
+        for (String tag : tags) {
+            final Set<CacheTuple> keys = keysByTag.get(tag);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByTag.remove(tag, keys);
+                }
+            }
+        }
+    }
+
+}
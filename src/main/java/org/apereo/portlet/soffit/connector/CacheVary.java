@@ -0,0 +1,172 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.portlet.PortletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Parsed representation of the <code>X-Soffit-Vary</code> response header,
+ * which names the parts of the request that affect a soffit's output.  The
+ * {@link SoffitConnectorController} folds the values of those parts into a
+ * compact hash (the variant), which becomes part of the cache key.  Supported
+ * fields are:
+ *
+ * <ul>
+ *   <li><code>request.parameters</code> -- all request parameters</li>
+ *   <li><code>request.parameters.<i>name</i></code> -- a single request parameter</li>
+ *   <li><code>request.properties.<i>name</i></code> -- a single request property (HTTP header)</li>
+ *   <li><code>request.locale</code> -- the user's preferred locale</li>
+ *   <li><code>definition.preferences.<i>name</i></code> -- a single portlet preference</li>
+ * </ul>
+ */
+public final class CacheVary {
+
+    /**
+     * The output doesn't vary (beyond mode, window state, and user);  this is
+     * the default.
+     */
+    public static final CacheVary NONE = new CacheVary(new String[0]);
+
+    private static final String PARAMETERS = "request.parameters";
+    private static final String PARAMETER_PREFIX = PARAMETERS + ".";
+    private static final String PROPERTY_PREFIX = "request.properties.";
+    private static final String LOCALE = "request.locale";
+    private static final String PREFERENCE_PREFIX = "definition.preferences.";
+
+    /**
+     * Terminates each value in the hashed input, so that adjacent values
+     * can't run together.
+     */
+    private static final char TERMINATOR = '\u0000';
+
+    private final String[] fields;  // Sorted
+
+    private CacheVary(String[] fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Parses the value of the header, which is a list of fields separated by
+     * commas or whitespace.
+     */
+    public static CacheVary parse(String value) {
+        final String[] tokens = StringUtils.split(StringUtils.defaultString(value), ", \t");
+        if (tokens.length == 0) {
+            return NONE;
+        }
+        return new CacheVary(new TreeSet<>(Arrays.asList(tokens)).toArray(new String[0]));
+    }
+
+    public boolean isNone() {
+        return fields.length == 0;
+    }
+
+    /**
+     * Computes the variant of the soffit's output that applies to the
+     * specified request, or null if the output doesn't vary.
+     */
+    public String getVariant(PortletRequest req) {
+
+        if (isNone()) {
+            return null;
+        }
+
+        final StringBuilder input = new StringBuilder();
+        for (String field : fields) {
+            input.append(field).append(TERMINATOR);
+            if (PARAMETERS.equals(field)) {
+                for (Map.Entry<String,String[]> y : new TreeMap<>(req.getParameterMap()).entrySet()) {
+                    appendValues(input.append(y.getKey()).append(TERMINATOR), y.getValue());
+                }
+            } else if (field.startsWith(PARAMETER_PREFIX)) {
+                appendValues(input, req.getParameterValues(field.substring(PARAMETER_PREFIX.length())));
+            } else if (field.startsWith(PROPERTY_PREFIX)) {
+                appendValues(input, req.getProperty(field.substring(PROPERTY_PREFIX.length())));
+            } else if (LOCALE.equals(field)) {
+                appendValues(input, req.getLocale() != null ? req.getLocale().toString() : null);
+            } else if (field.startsWith(PREFERENCE_PREFIX)) {
+                appendValues(input, req.getPreferences().getValues(field.substring(PREFERENCE_PREFIX.length()), null));
+            }
+            // Anything else is unsupported and contributes nothing
+        }
+
+        return hash(input.toString());
+
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        CacheVary other = (CacheVary) obj;
+        return Arrays.equals(fields, other.fields);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheVary [fields=" + Arrays.toString(fields) + "]";
+    }
+
+    /*
+     * Implementation
+     */
+
+    private static void appendValues(StringBuilder input, String... values) {
+        if (values == null) {
+            input.append(TERMINATOR);
+            return;
+        }
+        input.append(values.length).append(TERMINATOR);
+        for (String value : values) {
+            input.append(StringUtils.defaultString(value)).append(TERMINATOR);
+        }
+    }
+
+    private static String hash(String input) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new BigInteger(1, digest.digest(input.getBytes(StandardCharsets.UTF_8))).toString(Character.MAX_RADIX);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
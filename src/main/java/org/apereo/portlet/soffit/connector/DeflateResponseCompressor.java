@@ -0,0 +1,64 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Concrete {@link IResponseCompressor} based on the DEFLATE algorithm provided
+ * by the JDK.  Uses a fast compression level, since markup compresses well
+ * even so.  Declared as the <code>responseCompressor</code> bean in
+ * <code>soffit-connector.xml</code>.
+ */
+public class DeflateResponseCompressor implements IResponseCompressor {
+
+    public static final String ENCODING = "deflate";
+
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public byte[] compress(byte[] content) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final ByteArrayOutputStream rslt = new ByteArrayOutputStream(content.length / 4);
+            try (final DeflaterOutputStream out = new DeflaterOutputStream(rslt, deflater)) {
+                out.write(content);
+            }
+            return rslt.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public InputStream decompress(byte[] compressed) throws IOException {
+        return new InflaterInputStream(new ByteArrayInputStream(compressed));
+    }
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import okhttp3.ConnectionPool;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Owns the single, long-lived {@link CloseableHttpClient} that the
+ * {@link SoffitConnectorController} uses to invoke remote soffits, along with
+ * its pool of connections.  A background thread evicts connections that have
+ * expired or sat idle too long.  Pool limits may be set as bean properties or
+ * adjusted at runtime over JMX, where pool statistics are also available for
+ * each route (i.e. soffit host).<p>
+ *
+ * By default the client speaks HTTP/1.1, so each request in flight to a host
+ * holds a connection of its own.  The pool hands out the most recently used
+ * idle connection first, which keeps the set of live connections to each host
+ * close to the number of concurrent renders.  If the
+ * <code>org.apereo.portlet.soffit.connector.HttpConnectionPool.http2</code>
+ * property is <code>true</code>, the client speaks HTTP/2 instead (see
+ * {@link OkHttpClientAdapter}) and multiplexes the requests to each host over
+ * one connection;  the pool limits and per-route statistics don't apply, and
+ * the JMX attributes for them say so.  Either way, the client keeps
+ * no cookies:  it is shared by every user, and a cookie set by one soffit
+ * response would otherwise be sent with every later request to that host.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=HttpConnectionPool")
+public class HttpConnectionPool {
+
+    /**
+     * Name of the (Spring Environment) property that selects the HTTP/2
+     * transport.  Takes effect at initialization only.
+     */
+    public static final String HTTP2_PROPERTY = "org.apereo.portlet.soffit.connector.HttpConnectionPool.http2";
+
+    /**
+     * Name of the (Spring Environment) property that sets the number of idle
+     * HTTP/2 connections kept, across all soffit hosts.  Takes effect at
+     * initialization only.
+     */
+    public static final String HTTP2_MAX_IDLE_CONNECTIONS_PROPERTY =
+            "org.apereo.portlet.soffit.connector.HttpConnectionPool.http2MaxIdleConnections";
+
+    /**
+     * An HTTP/2 connection carries every request to its host, so a few idle
+     * connections cover a few soffit hosts.
+     */
+    public static final int DEFAULT_HTTP2_MAX_IDLE_CONNECTIONS = 5;
+
+    public static final int DEFAULT_MAX_TOTAL = 200;
+    public static final int DEFAULT_MAX_PER_ROUTE = 50;
+
+    /**
+     * How long (in seconds) to keep a connection alive when the server doesn't
+     * say (with a <code>Keep-Alive</code> header).
+     */
+    public static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+
+    public static final int DEFAULT_MAX_IDLE_SECONDS = 60;
+
+    /**
+     * Connections that have been inactive longer than this (in milliseconds)
+     * are checked before they are reused.
+     */
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+    private int maxTotal = DEFAULT_MAX_TOTAL;
+    private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private int keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private int maxIdleSeconds = DEFAULT_MAX_IDLE_SECONDS;
+
+    private final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    private ConnectionPool http2ConnectionPool;  // Only with the HTTP/2 transport
+    private CloseableHttpClient httpClient;
+
+    @Autowired
+    private Environment environment;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @PostConstruct
+    public void init() {
+
+        if (Boolean.valueOf(environment.getProperty(HTTP2_PROPERTY, "false"))) {
+            final int maxIdleConnections = environment.getProperty(HTTP2_MAX_IDLE_CONNECTIONS_PROPERTY,
+                    Integer.class, DEFAULT_HTTP2_MAX_IDLE_CONNECTIONS);
+            http2ConnectionPool = new ConnectionPool(maxIdleConnections, maxIdleSeconds, TimeUnit.SECONDS);
+            httpClient = new OkHttpClientAdapter(http2ConnectionPool);
+            logger.info("Initialized the soffit HTTP/2 client with maxIdleConnections={}", maxIdleConnections);
+            return;
+        }
+
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoKeepAlive(true)
+                .build());
+
+        final ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                final long rslt = super.getKeepAliveDuration(response, context);
+                return rslt > 0 ? rslt : keepAliveSeconds * 1000L;
+            }
+        };
+
+        httpClient = HttpClientBuilder
+                .create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .disableCookieManagement()
+                .evictExpiredConnections()
+                .evictIdleConnections(maxIdleSeconds, TimeUnit.SECONDS)
+                .build();
+
+        logger.info("Initialized the soffit connection pool with maxTotal={}, maxPerRoute={}", maxTotal, maxPerRoute);
+
+    }
+
+    @PreDestroy
+    public void destroy() {
+        try {
+            // Also stops the eviction thread and shuts down the pool
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the soffit HttpClient", e);
+        }
+    }
+
+    /**
+     * The shared client.  Callers must not close it.
+     */
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * True if the client speaks HTTP/2, in which case the HTTP/1.1 pool
+     * limits and statistics don't apply.
+     */
+    @ManagedAttribute(description="True if soffits are invoked over HTTP/2")
+    public boolean isHttp2() {
+        return http2ConnectionPool != null;
+    }
+
+    @ManagedAttribute(description="Maximum number of connections to all soffit hosts (-1 with HTTP/2)")
+    public int getMaxTotal() {
+        return isHttp2() ? -1 : maxTotal;
+    }
+
+    @ManagedAttribute
+    public void setMaxTotal(int maxTotal) {
+        checkNotHttp2("MaxTotal");
+        this.maxTotal = maxTotal;
+        connectionManager.setMaxTotal(maxTotal);
+    }
+
+    @ManagedAttribute(description="Maximum number of connections to each soffit host (-1 with HTTP/2)")
+    public int getMaxPerRoute() {
+        return isHttp2() ? -1 : maxPerRoute;
+    }
+
+    @ManagedAttribute
+    public void setMaxPerRoute(int maxPerRoute) {
+        checkNotHttp2("MaxPerRoute");
+        this.maxPerRoute = maxPerRoute;
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    }
+
+    public void setKeepAliveSeconds(int keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    /**
+     * Takes effect at initialization only.
+     */
+    public void setMaxIdleSeconds(int maxIdleSeconds) {
+        this.maxIdleSeconds = maxIdleSeconds;
+    }
+
+    @ManagedAttribute(description="Pool statistics for all routes")
+    public String getTotalStats() {
+        if (http2ConnectionPool != null) {
+            return "connections=" + http2ConnectionPool.connectionCount()
+                    + ", idle=" + http2ConnectionPool.idleConnectionCount();
+        }
+        return formatStats(connectionManager.getTotalStats());
+    }
+
+    @ManagedAttribute(description="Pool statistics for each route")
+    public String[] getRouteStats() {
+        if (isHttp2()) {
+            return new String[] { "Not applicable to HTTP/2;  see TotalStats" };
+        }
+        final List<String> rslt = new ArrayList<>();
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            rslt.add(route.getTargetHost().toURI() + " " + formatStats(connectionManager.getStats(route)));
+        }
+        return rslt.toArray(new String[rslt.size()]);
+    }
+
+    /*
+     * Implementation
+     */
+
+    /**
+     * The HTTP/1.1 pool limits would be accepted and ignored under HTTP/2, so
+     * the attempt is refused instead.
+     */
+    private void checkNotHttp2(String attribute) {
+        if (isHttp2()) {
+            throw new IllegalStateException(attribute + " does not apply to the HTTP/2 transport");
+        }
+    }
+
+    private String formatStats(PoolStats stats) {
+        return "leased=" + stats.getLeased() + ", pending=" + stats.getPending()
+                + ", available=" + stats.getAvailable() + ", max=" + stats.getMax();
+    }
+
+}
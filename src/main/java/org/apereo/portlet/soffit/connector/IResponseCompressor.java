@@ -0,0 +1,48 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Concrete implementations of this interface compress soffit responses before
+ * the {@link SoffitConnectorController} stores them in the response cache, so
+ * that more of them fit in the same amount of memory.  Responses are
+ * decompressed as they are written to the portlet.<p>
+ *
+ * The connector uses the bean named <code>responseCompressor</code>, if there
+ * is one.  Soffit declares {@link DeflateResponseCompressor} under that name
+ * in <code>soffit-connector.xml</code>;  define another implementation (e.g.
+ * LZ4) with the same name to replace it and trade compression ratio for speed.
+ */
+public interface IResponseCompressor {
+
+    /**
+     * A unique name for the compression scheme, stored alongside compressed
+     * content.
+     */
+    String getEncoding();
+
+    byte[] compress(byte[] content) throws IOException;
+
+    InputStream decompress(byte[] compressed) throws IOException;
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+/**
+ * An {@link ISoffitLoader} that declares what its contribution to the payload
+ * depends on.  The {@link SoffitConnectorController} invokes loaders with a
+ * scope broader than {@link Scope#REQUEST} once per portal, portlet definition
+ * or user session (and again when the memoized contribution expires), and
+ * merges the result into each payload at the loader's place in the order.<p>
+ *
+ * A memoized loader receives an empty payload and may not rely on the work of
+ * loaders that run before it.  Its contribution is added to the payload:
+ * scalar values replace those already present, while attributes, groups,
+ * preferences and the like are combined with them.  Loaders that don't
+ * implement this interface are invoked on every render.
+ */
+public interface IScopedSoffitLoader extends ISoffitLoader {
+
+    /**
+     * What a loader's contribution depends on.
+     */
+    enum Scope {
+
+        /**
+         * The contribution is the same for every soffit and every user (e.g.
+         * the {@link javax.portlet.PortalContext}).
+         */
+        PORTAL,
+
+        /**
+         * The contribution depends on the soffit and its portlet preferences.
+         */
+        DEFINITION,
+
+        /**
+         * The contribution depends on the user and lasts as long as the user's
+         * session.
+         */
+        SESSION,
+
+        /**
+         * The contribution may differ on every render;  it is not memoized.
+         */
+        REQUEST
+
+    }
+
+    Scope getScope();
+
+}
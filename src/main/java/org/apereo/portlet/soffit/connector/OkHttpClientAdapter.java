@@ -0,0 +1,356 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A {@link CloseableHttpClient} that sends requests with OkHttp over HTTP/2,
+ * so that every request in flight to a soffit host is multiplexed over one
+ * connection (with HPACK header compression) instead of holding a connection
+ * of its own.  Plain <code>http</code> URLs use h2c with prior knowledge --
+ * the soffit host must accept HTTP/2 without an upgrade -- and
+ * <code>https</code> URLs negotiate HTTP/2 with ALPN, falling back to
+ * HTTP/1.1.<p>
+ *
+ * Only what the {@link SoffitConnectorController} uses is supported:  the
+ * request's headers and entity, the connect and socket timeouts of its
+ * {@link RequestConfig}, and aborting it.  The socket timeout bounds the
+ * whole call (OkHttp's call timeout), which suits the connector:  it already
+ * caps the socket timeout at the time remaining before the request's
+ * deadline, so the value differs from one request to the next.  The connect
+ * timeout is a setting of the OkHttp client, so there's a client (sharing
+ * the connection pool) for each connect timeout in use.
+ */
+/* package-private */ final class OkHttpClientAdapter extends CloseableHttpClient {
+
+    /**
+     * Request headers that OkHttp manages itself (or that HTTP/2 forbids).
+     */
+    private static final Set<String> EXCLUDED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "content-type", "host", "keep-alive", "transfer-encoding", "upgrade"));
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private final OkHttpClient tlsClient;
+    private final OkHttpClient cleartextClient;
+    private final ConcurrentMap<Integer,OkHttpClient> tlsClientsByConnectTimeout = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer,OkHttpClient> cleartextClientsByConnectTimeout = new ConcurrentHashMap<>();
+
+    public OkHttpClientAdapter(ConnectionPool connectionPool) {
+        // Like HttpClient, don't follow redirects for a POST;  OkHttp keeps no cookies by default
+        tlsClient = new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .followRedirects(false)
+                // Bounded by the call timeout instead
+                .readTimeout(0L, TimeUnit.MILLISECONDS)
+                .writeTimeout(0L, TimeUnit.MILLISECONDS)
+                .build();
+        cleartextClient = tlsClient.newBuilder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build();
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return tlsClient.connectionPool();
+    }
+
+    @Override
+    public void close() {
+        tlsClient.dispatcher().executorService().shutdown();
+        tlsClient.connectionPool().evictAll();
+    }
+
+    /**
+     * Not applicable;  OkHttp is configured with its own builder.
+     *
+     * @return null
+     */
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public org.apache.http.params.HttpParams getParams() {
+        return null;
+    }
+
+    /**
+     * Not applicable;  OkHttp manages its own connections (see
+     * {@link #getConnectionPool()}).
+     *
+     * @return null
+     */
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+        return null;
+    }
+
+    /*
+     * Implementation
+     */
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException {
+
+        final URI uri = request instanceof HttpUriRequest && ((HttpUriRequest) request).getURI().isAbsolute()
+                ? ((HttpUriRequest) request).getURI()
+                : URI.create(target.toURI()).resolve(request.getRequestLine().getUri());
+
+        final Request.Builder builder = new Request.Builder().url(uri.toString());
+        for (Header header : request.getAllHeaders()) {
+            if (!EXCLUDED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                builder.addHeader(header.getName(), header.getValue());
+            }
+        }
+        RequestBody body = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                if (entity.getContentEncoding() != null) {
+                    builder.header(entity.getContentEncoding().getName(), entity.getContentEncoding().getValue());
+                }
+                body = new EntityRequestBody(entity);
+            }
+        }
+        builder.method(request.getRequestLine().getMethod(), body);
+
+        final RequestConfig config = request instanceof Configurable ? ((Configurable) request).getConfig() : null;
+        final OkHttpClient client = getClient("https".equalsIgnoreCase(uri.getScheme()),
+                config != null ? config.getConnectTimeout() : -1);
+        final Call call = client.newCall(builder.build());
+        if (config != null && config.getSocketTimeout() > 0) {
+            call.timeout().timeout(config.getSocketTimeout(), TimeUnit.MILLISECONDS);
+        }
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        if (request instanceof HttpExecutionAware) {
+            // Cancels at once if the request has already been aborted
+            ((HttpExecutionAware) request).setCancellable(new Cancellable() {
+                @Override
+                public boolean cancel() {
+                    aborted.set(true);
+                    call.cancel();
+                    return true;
+                }
+            });
+        }
+
+        try {
+            return new ResponseAdapter(call.execute(), call, aborted);
+        } catch (IOException e) {
+            throw translateException(e, call, aborted);
+        }
+
+    }
+
+    /**
+     * OkHttp reports a call that ran out of time as cancelled, but HttpClient
+     * (and so the connector) reports timeouts with an
+     * {@link InterruptedIOException}.  Calls cancelled by aborting the request
+     * are reported as they are.
+     */
+    private static IOException translateException(IOException e, Call call, AtomicBoolean aborted) {
+        if (e instanceof InterruptedIOException || !call.isCanceled() || aborted.get()) {
+            return e;
+        }
+        final SocketTimeoutException rslt = new SocketTimeoutException("Timed out");
+        rslt.initCause(e);
+        return rslt;
+    }
+
+    /**
+     * Returns the client for the scheme and connect timeout, creating it (to
+     * share the connection pool and dispatcher) the first time.
+     */
+    private OkHttpClient getClient(boolean tls, int connectTimeout) {
+        final OkHttpClient base = tls ? tlsClient : cleartextClient;
+        if (connectTimeout <= 0) {
+            return base;
+        }
+        final ConcurrentMap<Integer,OkHttpClient> clients = tls
+                ? tlsClientsByConnectTimeout
+                : cleartextClientsByConnectTimeout;
+        OkHttpClient rslt = clients.get(connectTimeout);
+        if (rslt == null) {
+            final OkHttpClient created = base.newBuilder()
+                    .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                    .build();
+            rslt = clients.putIfAbsent(connectTimeout, created);
+            if (rslt == null) {
+                rslt = created;
+            }
+        }
+        return rslt;
+    }
+
+    /*
+     * Nested Types
+     */
+
+    private static final class EntityRequestBody extends RequestBody {
+
+        private final HttpEntity entity;
+
+        public EntityRequestBody(HttpEntity entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return entity.getContentType() != null ? MediaType.parse(entity.getContentType().getValue()) : null;
+        }
+
+        @Override
+        public long contentLength() {
+            return entity.getContentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            entity.writeTo(sink.outputStream());
+        }
+
+    }
+
+    /**
+     * Reports a timeout while the response is read as HttpClient would.
+     */
+    private static final class ContentStream extends FilterInputStream {
+
+        private final Call call;
+        private final AtomicBoolean aborted;
+
+        public ContentStream(InputStream in, Call call, AtomicBoolean aborted) {
+            super(in);
+            this.call = call;
+            this.aborted = aborted;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw translateException(e, call, aborted);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw translateException(e, call, aborted);
+            }
+        }
+
+    }
+
+    private static final class ResponseAdapter extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private final ResponseBody body;
+
+        public ResponseAdapter(Response response, Call call, AtomicBoolean aborted) {
+            super(new BasicStatusLine(getProtocolVersion(response.protocol()), response.code(), response.message()));
+            final Headers headers = response.headers();
+            for (int i = 0; i < headers.size(); i++) {
+                addHeader(headers.name(i), headers.value(i));
+            }
+            body = response.body();
+            if (body != null) {
+                final BasicHttpEntity entity = new BasicHttpEntity();
+                entity.setContent(new ContentStream(body.byteStream(), call, aborted));
+                entity.setContentLength(body.contentLength());
+                if (body.contentType() != null) {
+                    entity.setContentType(body.contentType().toString());
+                }
+                setEntity(entity);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (body != null) {
+                body.close();
+            }
+        }
+
+        private static ProtocolVersion getProtocolVersion(Protocol protocol) {
+            switch (protocol) {
+                case HTTP_2:
+                case H2_PRIOR_KNOWLEDGE:
+                    return HTTP_2;
+                case HTTP_1_0:
+                    return HttpVersion.HTTP_1_0;
+                default:
+                    return HttpVersion.HTTP_1_1;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.portlet.PortletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apereo.portlet.soffit.model.v1_0.Context;
+import org.apereo.portlet.soffit.model.v1_0.Definition;
+import org.apereo.portlet.soffit.model.v1_0.Group;
+import org.apereo.portlet.soffit.model.v1_0.Payload;
+import org.apereo.portlet.soffit.model.v1_0.Request;
+import org.apereo.portlet.soffit.model.v1_0.User;
+
+/**
+ * The parts of the {@link Payload} a soffit has declared that it needs.  Each
+ * field is a dot-separated path of up to three parts -- section, member, and
+ * key -- e.g.:
+ *
+ * <ul>
+ *   <li><code>user</code> -- everything in the user section</li>
+ *   <li><code>request.parameters</code> -- all request parameters</li>
+ *   <li><code>user.attributes.displayName</code> -- a single user attribute</li>
+ * </ul>
+ *
+ * Some fields are always sent, because the renderer depends on them:
+ * <code>request.windowId</code>, <code>request.windowState</code>,
+ * <code>request.attributes.mode</code>, and <code>user.username</code>.<p>
+ *
+ * The {@link SoffitConnectorController} places the selection for the current
+ * soffit in a request attribute, so that loaders may skip the work of
+ * gathering what isn't needed (see {@link #forRequest(PortletRequest)}).
+ * Whatever they gather anyway is pruned from the payload before it's sent.
+ */
+public final class PayloadFields {
+
+    /**
+     * Name of the {@link PortletRequest} attribute that holds the selection
+     * for the soffit being rendered.
+     */
+    public static final String REQUEST_ATTRIBUTE = PayloadFields.class.getName();
+
+    /**
+     * Selects the whole payload;  this is the default.
+     */
+    public static final PayloadFields ALL = new PayloadFields(null);
+
+    private static final String SEPARATOR = ".";
+
+    private final Set<String> fields;  // null means all
+
+    private PayloadFields(Set<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Creates a selection from the specified values, each of which may list
+     * several fields separated by commas or whitespace.  If no fields are
+     * specified, the result is {@link #ALL}.
+     */
+    public static PayloadFields parse(String... values) {
+
+        if (values == null) {
+            return ALL;
+        }
+
+        final Set<String> fields = new HashSet<>();
+        for (String value : values) {
+            for (String token : StringUtils.split(StringUtils.defaultString(value), ", \t")) {
+                fields.add(token);
+            }
+        }
+
+        if (fields.isEmpty()) {
+            return ALL;
+        }
+
+        // Required by the renderer
+        fields.add("request.windowId");
+        fields.add("request.windowState");
+        fields.add("request.attributes." + Request.MODE);
+        fields.add("user.username");
+
+        return new PayloadFields(Collections.unmodifiableSet(fields));
+
+    }
+
+    /**
+     * The selection for the soffit being rendered, or {@link #ALL} if none was
+     * specified.
+     */
+    public static PayloadFields forRequest(PortletRequest req) {
+        final PayloadFields rslt = (PayloadFields) req.getAttribute(REQUEST_ATTRIBUTE);
+        return rslt != null ? rslt : ALL;
+    }
+
+    public boolean isAll() {
+        return fields == null;
+    }
+
+    /**
+     * True if the specified member -- or any of its keys -- is selected.
+     */
+    public boolean includes(String section, String member) {
+        if (fields == null || fields.contains(section)) {
+            return true;
+        }
+        final String path = section + SEPARATOR + member;
+        if (fields.contains(path)) {
+            return true;
+        }
+        final String prefix = path + SEPARATOR;
+        for (String field : fields) {
+            if (field.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if the specified key of a member is selected.
+     */
+    public boolean includes(String section, String member, String key) {
+        if (fields == null || fields.contains(section)) {
+            return true;
+        }
+        final String path = section + SEPARATOR + member;
+        return fields.contains(path) || fields.contains(path + SEPARATOR + key);
+    }
+
+    /**
+     * Removes everything that isn't selected from the payload.
+     */
+    public void prune(Payload payload) {
+
+        if (fields == null) {
+            return;
+        }
+
+        final Request request = payload.getRequest();
+        if (request != null) {
+            for (String key : new ArrayList<>(request.getAttributes().keySet())) {
+                if (!includes("request", "attributes", key)) {
+                    request.removeAttribute(key);
+                }
+            }
+            for (String key : new ArrayList<>(request.getParameters().keySet())) {
+                if (!includes("request", "parameters", key)) {
+                    request.removeParameter(key);
+                }
+            }
+            for (String key : new ArrayList<>(request.getProperties().keySet())) {
+                if (!includes("request", "properties", key)) {
+                    request.removeProperty(key);
+                }
+            }
+        }
+
+        final User user = payload.getUser();
+        if (user != null) {
+            for (String key : new ArrayList<>(user.getAttributes().keySet())) {
+                if (!includes("user", "attributes", key)) {
+                    user.removeAttribute(key);
+                }
+            }
+            if (!includes("user", "groups")) {
+                for (Group group : new ArrayList<>(user.getGroups())) {
+                    user.removeGroup(group);
+                }
+            }
+        }
+
+        final Context context = payload.getContext();
+        if (context != null) {
+            if (!includes("context", "portalInfo")) {
+                context.setPortalInfo(null);
+            }
+            for (String key : new ArrayList<>(context.getAttributes().keySet())) {
+                if (!includes("context", "attributes", key)) {
+                    context.removeAttribute(key);
+                }
+            }
+            if (!includes("context", "supportedWindowStates")) {
+                for (String windowState : new ArrayList<>(context.getSupportedWindowStates())) {
+                    context.removeSupportedWindowState(windowState);
+                }
+            }
+        }
+
+        final Definition definition = payload.getDefinition();
+        if (definition != null) {
+            if (!includes("definition", "title")) {
+                definition.setTitle(null);
+            }
+            if (!includes("definition", "fname")) {
+                definition.setFname(null);
+            }
+            if (!includes("definition", "description")) {
+                definition.setDescription(null);
+            }
+            if (!includes("definition", "categories")) {
+                for (String category : new ArrayList<>(definition.getCategories())) {
+                    definition.removeCategory(category);
+                }
+            }
+            for (String key : new ArrayList<>(definition.getParameters().keySet())) {
+                if (!includes("definition", "parameters", key)) {
+                    definition.removeParameter(key);
+                }
+            }
+            for (String key : new ArrayList<>(definition.getPreferences().keySet())) {
+                if (!includes("definition", "preferences", key)) {
+                    definition.removePreference(key);
+                }
+            }
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadFields [fields=" + (fields != null ? fields : "*") + "]";
+    }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.Enumeration;
+
+import javax.portlet.PortalContext;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+import javax.portlet.WindowState;
+
+import org.apache.commons.lang3.Validate;
+import org.apereo.portlet.soffit.model.v1_0.Context;
+import org.springframework.stereotype.Component;
+
+/**
+ * Concrete {@link ISoffitLoader} that shares the {@link PortalContext} with
+ * the soffit.  Its contribution is the same for every render, so the
+ * {@link SoffitConnectorController} memoizes it.
+ */
+@Component
+public class PortalContextSoffitLoader extends AbstractSoffitLoader implements IScopedSoffitLoader {
+
+    @Override
+    public Scope getScope() {
+        return Scope.PORTAL;
+    }
+
+    @Override
+    public void load(org.apereo.portlet.soffit.model.v1_0.Payload soffit,
+            RenderRequest renderRequest, RenderResponse renderResponse) {
+
+        Validate.notNull(soffit, "The soffit must be instantiated before loading");
+        Validate.notNull(renderRequest, "Argument 'renderRequest' cannot be null");
+
+        // Skip what the soffit doesn't need
+        final PayloadFields fields = PayloadFields.forRequest(renderRequest);
+
+        final PortalContext portalContext = renderRequest.getPortalContext();
+        Context context = soffit.getContext();
+        if (context == null) {
+            // Create & set
+            context = new Context();
+            soffit.setContext(context);
+        }
+        if (fields.includes("context", "portalInfo")) {
+            context.setPortalInfo(portalContext.getPortalInfo());
+        }
+
+        // SupportedWindowStates
+        if (fields.includes("context", "supportedWindowStates")) {
+            final Enumeration<WindowState> supportedWindowStates = portalContext.getSupportedWindowStates();
+            while (supportedWindowStates.hasMoreElements()) {
+                context.addSupportedWindowState(supportedWindowStates.nextElement().toString());
+            }
+        }
+
+    }
+
+}
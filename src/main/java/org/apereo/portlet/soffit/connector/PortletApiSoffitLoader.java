@@ -24,13 +24,10 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
 
-import javax.portlet.PortalContext;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
-import javax.portlet.WindowState;
 
 import org.apache.commons.lang3.Validate;
-import org.apereo.portlet.soffit.model.v1_0.Context;
 import org.apereo.portlet.soffit.model.v1_0.Definition;
 import org.apereo.portlet.soffit.model.v1_0.Request;
 import org.apereo.portlet.soffit.model.v1_0.User;
@@ -39,7 +36,8 @@ import org.springframework.stereotype.Component;
 /**
  * Concrete {@link ISoffitLoader} that knows how to read information from
  * the Portlet API -- e.g. {@link PortletRequest} and {@link PortletResponse} --
- * and share it with the {@link SoffitRequest}.
+ * and share it with the {@link SoffitRequest}.  The portal context is loaded
+ * by {@link PortalContextSoffitLoader}.
  *
  * @author drewwills
  */
@@ -56,6 +54,9 @@ public class PortletApiSoffitLoader extends AbstractSoffitLoader {
         Validate.notNull(renderRequest, "Argument 'renderRequest' cannot be null");
         Validate.notNull(renderResponse, "Argument 'renderResponse' cannot be null");
 
+        // Skip what the soffit doesn't need
+        final PayloadFields fields = PayloadFields.forRequest(renderRequest);
+
         /*
          * Request
          */
@@ -73,18 +74,27 @@ public class PortletApiSoffitLoader extends AbstractSoffitLoader {
         request.setAttribute(Request.SECURE, Collections.singletonList(secure));
 
         // Parameters
-        for (Map.Entry<String,String[]> y : renderRequest.getParameterMap().entrySet()) {
-            request.setParameter(
-                    y.getKey(),
-                    Collections.unmodifiableList(Arrays.asList(y.getValue()))
-            );
+        if (fields.includes("request", "parameters")) {
+            for (Map.Entry<String,String[]> y : renderRequest.getParameterMap().entrySet()) {
+                if (!fields.includes("request", "parameters", y.getKey())) {
+                    continue;
+                }
+                request.setParameter(
+                        y.getKey(),
+                        Collections.unmodifiableList(Arrays.asList(y.getValue()))
+                );
+            }
         }
 
         // Properties
-        final Enumeration<String> propertyNames = renderRequest.getPropertyNames();
-        while (propertyNames.hasMoreElements()) {
-            final String name = propertyNames.nextElement();
-            request.setProperty(name, renderRequest.getProperty(name));
+        if (fields.includes("request", "properties")) {
+            final Enumeration<String> propertyNames = renderRequest.getPropertyNames();
+            while (propertyNames.hasMoreElements()) {
+                final String name = propertyNames.nextElement();
+                if (fields.includes("request", "properties", name)) {
+                    request.setProperty(name, renderRequest.getProperty(name));
+                }
+            }
         }
 
         soffit.setRequest(request);
@@ -96,21 +106,6 @@ public class PortletApiSoffitLoader extends AbstractSoffitLoader {
                 .setUsername(renderRequest.getRemoteUser());
         soffit.setUser(user);
 
-        /*
-         * Context
-         */
-        final PortalContext portalContext = renderRequest.getPortalContext();
-        final Context context = new Context()
-                .setPortalInfo(portalContext.getPortalInfo());
-
-        // SupportedWindowStates
-        final Enumeration<WindowState> supportedWindowStates = portalContext.getSupportedWindowStates();
-        while (supportedWindowStates.hasMoreElements()) {
-            context.addSupportedWindowState(supportedWindowStates.nextElement().toString());
-        }
-
-        soffit.setContext(context);
-
         /*
          * Definition (portlet preferences only)
          */
@@ -122,12 +117,16 @@ public class PortletApiSoffitLoader extends AbstractSoffitLoader {
         }
 
         // Preferences
+        if (!fields.includes("definition", "preferences")) {
+            return;
+        }
         for (Map.Entry<String,String[]> y : renderRequest.getPreferences().getMap().entrySet()) {
             /*
              * We ignore (skip) preferences that exist for the benefit of the
              * SoffitConnectorController.
              */
-            if (y.getKey().startsWith(SoffitConnectorController.CONNECTOR_PREFERENCE_PREFIX)) {
+            if (y.getKey().startsWith(SoffitConnectorController.CONNECTOR_PREFERENCE_PREFIX)
+                    || !fields.includes("definition", "preferences", y.getKey())) {
                 continue;
             }
             definition.setPreference(
@@ -0,0 +1,270 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Chooses among the replicas of a soffit when its <code>serviceUrl</code>
+ * preference lists more than one.  Each replica is scored by the number of
+ * requests outstanding to it and its (exponentially-weighted) average
+ * latency;  the lowest score wins.  Replicas whose circuits are open in the
+ * {@link ServiceCircuitBreaker} are passed over, so a failing replica drops
+ * out of rotation until it recovers.<p>
+ *
+ * This class also tracks recent latencies for each soffit (across all its
+ * replicas), from which the {@link SoffitConnectorController} computes the
+ * delay after which a hedged request is sent.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=ReplicaSelector")
+public class ReplicaSelector {
+
+    /**
+     * Weight given to each new latency sample in the running average.
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    /**
+     * Number of recent latencies retained for each soffit.
+     */
+    private static final int LATENCY_WINDOW_SIZE = 100;
+
+    /**
+     * Hedging is not attempted until at least this many latencies are known.
+     */
+    private static final int MINIMUM_LATENCY_SAMPLES = 20;
+
+    /**
+     * Hedged requests are sent after this percentile of recent latencies.
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    private final ConcurrentMap<String,Replica> replicas = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,SampleWindow> latencyWindows = new ConcurrentHashMap<>();
+
+    private final AtomicLong hedgedRequestCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    @Autowired
+    private ServiceCircuitBreaker serviceCircuitBreaker;
+
+    /**
+     * Selects the best available replica from the list, ignoring the one
+     * specified by <code>exclude</code> (if any).  If none is available, the
+     * first replica is returned (so that the request fails fast in the
+     * circuit breaker), unless <code>exclude</code> was specified, in which
+     * case the result is null.
+     */
+    public String select(List<String> replicaUrls, String exclude) {
+
+        // Replicas we have no experience with yet are assumed to be average
+        double totalLatency = 0.0;
+        int knownCount = 0;
+        for (String url : replicaUrls) {
+            final double averageLatency = getReplica(url).getAverageLatency();
+            if (averageLatency > 0.0) {
+                totalLatency += averageLatency;
+                knownCount++;
+            }
+        }
+        final double priorLatency = knownCount > 0 ? totalLatency / knownCount : 1.0;
+
+        String rslt = null;
+        double bestScore = Double.MAX_VALUE;
+        for (String url : replicaUrls) {
+            if (url.equals(exclude) || !serviceCircuitBreaker.isAvailable(url)) {
+                continue;
+            }
+            final double score = getReplica(url).getScore(priorLatency);
+            if (score < bestScore) {
+                rslt = url;
+                bestScore = score;
+            }
+        }
+
+        return rslt != null || exclude != null ? rslt : replicaUrls.get(0);
+
+    }
+
+    /**
+     * Must be called when a request is sent to a replica, and followed by
+     * {@link #end(String, String, long)}, {@link #fail(String, long)} or
+     * {@link #cancel(String)}.
+     */
+    public void begin(String replicaUrl) {
+        getReplica(replicaUrl).begin();
+    }
+
+    /**
+     * Records a successful request to a replica of the specified soffit.
+     */
+    public void end(String serviceUrl, String replicaUrl, long latencyMillis) {
+        getReplica(replicaUrl).end(latencyMillis);
+        getLatencyWindow(serviceUrl).add(latencyMillis);
+    }
+
+    /**
+     * Records a failed request (an error, a timeout, or an unexpected status)
+     * to a replica.  The failure counts toward the replica's average latency
+     * as though it had taken <code>penaltyMillis</code> (typically the
+     * request's timeout), so that a replica that fails fast doesn't look
+     * fast.
+     */
+    public void fail(String replicaUrl, long penaltyMillis) {
+        getReplica(replicaUrl).end(penaltyMillis);
+    }
+
+    /**
+     * Records a request to a replica that was abandoned -- e.g. it lost a race
+     * with a hedged request, or failed for reasons on this node -- and says
+     * nothing about the replica.
+     */
+    public void cancel(String replicaUrl) {
+        getReplica(replicaUrl).end(-1L);
+    }
+
+    /**
+     * Returns the number of milliseconds after which a hedged request should
+     * be sent for the specified soffit, or -1 if there's not yet enough
+     * information to say.
+     */
+    public long getHedgeDelay(String serviceUrl) {
+        final SampleWindow window = latencyWindows.get(serviceUrl);
+        return window != null ? window.getPercentile(HEDGE_PERCENTILE) : -1L;
+    }
+
+    /**
+     * Returns the mean of recent latencies for the specified soffit, or -1 if
+     * none are known.
+     */
+    public long getMeanLatency(String serviceUrl) {
+        final SampleWindow window = latencyWindows.get(serviceUrl);
+        return window != null ? window.getMean() : -1L;
+    }
+
+    public void recordHedgedRequest(boolean won) {
+        hedgedRequestCount.incrementAndGet();
+        if (won) {
+            hedgeWinCount.incrementAndGet();
+        }
+    }
+
+    @ManagedAttribute(description="Number of hedged (second) requests sent to soffit replicas")
+    public long getHedgedRequestCount() {
+        return hedgedRequestCount.get();
+    }
+
+    @ManagedAttribute(description="Number of hedged requests that finished before the original")
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    @ManagedAttribute(description="Outstanding requests and average latency for each soffit replica")
+    public String[] getReplicaStats() {
+        final List<String> rslt = new ArrayList<>();
+        for (Map.Entry<String,Replica> y : replicas.entrySet()) {
+            rslt.add(y.getKey() + " " + y.getValue());
+        }
+        return rslt.toArray(new String[rslt.size()]);
+    }
+
+    /*
+     * Implementation
+     */
+
+    private Replica getReplica(String replicaUrl) {
+        Replica rslt = replicas.get(replicaUrl);
+        if (rslt == null) {
+            final Replica created = new Replica();
+            rslt = replicas.putIfAbsent(replicaUrl, created);
+            if (rslt == null) {
+                rslt = created;
+            }
+        }
+        return rslt;
+    }
+
+    private SampleWindow getLatencyWindow(String serviceUrl) {
+        SampleWindow rslt = latencyWindows.get(serviceUrl);
+        if (rslt == null) {
+            final SampleWindow created = new SampleWindow(LATENCY_WINDOW_SIZE, MINIMUM_LATENCY_SAMPLES);
+            rslt = latencyWindows.putIfAbsent(serviceUrl, created);
+            if (rslt == null) {
+                rslt = created;
+            }
+        }
+        return rslt;
+    }
+
+    /*
+     * Nested Types
+     */
+
+    private static final class Replica {
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double averageLatency;  // 0 until the first sample
+
+        public void begin() {
+            outstanding.incrementAndGet();
+        }
+
+        public synchronized void end(long latencyMillis) {
+            outstanding.decrementAndGet();
+            if (latencyMillis >= 0) {
+                averageLatency = averageLatency == 0
+                        ? latencyMillis
+                        : averageLatency + LATENCY_SMOOTHING * (latencyMillis - averageLatency);
+            }
+        }
+
+        public double getAverageLatency() {
+            return averageLatency;
+        }
+
+        /**
+         * Replicas we have no experience with yet are scored with the
+         * <code>priorLatency</code> in place of their own.
+         */
+        public double getScore(double priorLatency) {
+            final double latency = averageLatency > 0.0 ? averageLatency : priorLatency;
+            return (outstanding.get() + 1) * latency;
+        }
+
+        @Override
+        public String toString() {
+            return "outstanding=" + outstanding.get() + ", averageLatencyMillis=" + Math.round(averageLatency);
+        }
+
+    }
+
+}
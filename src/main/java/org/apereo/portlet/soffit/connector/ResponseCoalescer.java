@@ -0,0 +1,180 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apereo.portlet.soffit.connector.SoffitConnectorController.CacheTuple;
+import org.apereo.portlet.soffit.connector.SoffitConnectorController.ResponseWrapper;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collapses concurrent cache misses for the same public-scope content into a
+ * single request to the remote soffit (sometimes called "single-flight").  The
+ * first request for a given {@link CacheTuple} -- the leader -- invokes the
+ * soffit;  requests that arrive while the leader is in flight wait for it to
+ * finish and then share its response.<p>
+ *
+ * Coalescing only applies to content that the soffit has previously marked
+ * <code>public</code>.  We can't know the scope of a response before we
+ * receive it, and waiting on a leader whose response turns out to be private
+ * would only make the followers slower.  What we learn about a key is
+ * forgotten a little while after its response leaves the cache.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=ResponseCoalescer")
+public class ResponseCoalescer {
+
+    /**
+     * A key remains shareable for this long after its response expires from
+     * the cache, so that the requests that refill the cache are coalesced
+     * too.
+     */
+    private static final long SHAREABLE_GRACE_MILLIS = 60L * 1000L;
+
+    /**
+     * Shareable keys that have expired are removed at most this often.
+     */
+    private static final long PURGE_INTERVAL_MILLIS = 60L * 1000L;
+
+    private final ConcurrentMap<CacheTuple,FutureTask<ResponseWrapper>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CacheTuple,Long> shareableUntil = new ConcurrentHashMap<>();
+    private final AtomicLong nextPurge = new AtomicLong();
+
+    private final AtomicLong leaderCount = new AtomicLong();
+    private final AtomicLong coalescedWaiterCount = new AtomicLong();
+
+    /**
+     * Invokes <code>fetch</code> if no request for the same key is in flight
+     * (or the key is not known to be shareable);  otherwise waits up to
+     * <code>timeoutMillis</code> for the request that is in flight, then
+     * invokes <code>afterWaiting</code>, which is expected to obtain the
+     * shared response from the cache.
+     */
+    public ResponseWrapper execute(CacheTuple key, Callable<ResponseWrapper> fetch,
+            Callable<ResponseWrapper> afterWaiting, long timeoutMillis) throws Exception {
+
+        final Long until = shareableUntil.get(key);
+        if (until == null || until < System.currentTimeMillis()) {
+            return fetch.call();
+        }
+
+        final FutureTask<ResponseWrapper> task = new FutureTask<>(fetch);
+        final FutureTask<ResponseWrapper> leader = inFlight.putIfAbsent(key, task);
+        if (leader == null) {
+            // This thread is the leader
+            leaderCount.incrementAndGet();
+            try {
+                task.run();
+                return task.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+
+        coalescedWaiterCount.incrementAndGet();
+        try {
+            leader.get(Math.max(timeoutMillis, 0L), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // The leader failed;  the follower will try for itself
+        } catch (TimeoutException e) {
+            // Same as above
+        }
+        return afterWaiting.call();
+
+    }
+
+    /**
+     * Records whether the most recent response for the specified key was
+     * cached in a way that lets concurrent requests share it, and for how
+     * long (in seconds) it was cached.
+     */
+    public void setShareable(CacheTuple key, boolean shareable, int timeToLive) {
+        final long now = System.currentTimeMillis();
+        if (shareable) {
+            shareableUntil.put(key, now + timeToLive * 1000L + SHAREABLE_GRACE_MILLIS);
+        } else {
+            shareableUntil.remove(key);
+        }
+        purgeExpiredIfDue(now);
+    }
+
+    @ManagedAttribute(description="Requests that invoked a remote soffit on behalf of themselves and others")
+    public long getLeaderCount() {
+        return leaderCount.get();
+    }
+
+    @ManagedAttribute(description="Requests that waited for (and shared) a response already in flight")
+    public long getCoalescedWaiterCount() {
+        return coalescedWaiterCount.get();
+    }
+
+    @ManagedAttribute(description="Keys known to be shareable")
+    public int getShareableKeyCount() {
+        return shareableUntil.size();
+    }
+
+    @ManagedAttribute(description="Requests for shareable content currently in flight")
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /*
+     * Implementation
+     */
+
+    private void purgeExpiredIfDue(long now) {
+        final long due = nextPurge.get();
+        if (now < due || !nextPurge.compareAndSet(due, now + PURGE_INTERVAL_MILLIS)) {
+            // Not yet, or another thread is on it
+            return;
+        }
+        for (Iterator<Map.Entry<CacheTuple,Long>> it = shareableUntil.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue() < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private Exception unwrap(ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+
+}
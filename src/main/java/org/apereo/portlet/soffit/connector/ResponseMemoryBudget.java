@@ -0,0 +1,117 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Accounts for the memory used to buffer soffit responses while they're read,
+ * across all the fetches in progress on this node.  A fetch reserves memory
+ * before it buffers more of the response;  when the budget is exhausted, it
+ * waits for other fetches to release theirs (backpressure), up to its own
+ * deadline, and is then rejected.  The limit may be set as a bean property or
+ * adjusted at runtime over JMX.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=ResponseMemoryBudget")
+public class ResponseMemoryBudget {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long inFlightBytes;
+    private long peakInFlightBytes;
+
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Reserves the specified number of bytes, waiting up to
+     * <code>timeoutMillis</code> for them to become available.
+     *
+     * @return True if the bytes were reserved, in which case they must later
+     * be released
+     */
+    public synchronized boolean reserve(long bytes, long timeoutMillis) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean waited = false;
+        while (inFlightBytes + bytes > maxBytes) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            if (!waited) {
+                waitCount.incrementAndGet();
+                waited = true;
+            }
+            wait(remaining);
+        }
+
+        inFlightBytes += bytes;
+        peakInFlightBytes = Math.max(peakInFlightBytes, inFlightBytes);
+        return true;
+
+    }
+
+    public synchronized void release(long bytes) {
+        if (bytes != 0L) {
+            inFlightBytes -= bytes;
+            notifyAll();
+        }
+    }
+
+    @ManagedAttribute(description="Maximum number of bytes that may be buffered by soffit fetches at once")
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @ManagedAttribute
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        notifyAll();
+    }
+
+    @ManagedAttribute(description="Number of bytes currently buffered by soffit fetches")
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    @ManagedAttribute(description="Largest number of bytes buffered by soffit fetches at once")
+    public synchronized long getPeakInFlightBytes() {
+        return peakInFlightBytes;
+    }
+
+    @ManagedAttribute(description="Number of fetches that had to wait for memory")
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    @ManagedAttribute(description="Number of fetches rejected because memory did not become available in time")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+}
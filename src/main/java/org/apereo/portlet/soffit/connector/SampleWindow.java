@@ -0,0 +1,86 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.Arrays;
+
+/**
+ * Retains the most recent samples of some measurement (e.g. latency) so that
+ * percentiles may be calculated.  Thread-safe.
+ */
+/* package-private */ final class SampleWindow {
+
+    private final long[] samples;
+    private final int minimumSamples;
+    private int sampleCount;
+    private int nextSample;
+
+    /**
+     * @param size The number of recent samples retained
+     * @param minimumSamples Percentiles are not reported until at least this
+     * many samples are known
+     */
+    public SampleWindow(int size, int minimumSamples) {
+        this.samples = new long[size];
+        this.minimumSamples = minimumSamples;
+    }
+
+    public synchronized void add(long sample) {
+        samples[nextSample] = sample;
+        nextSample = (nextSample + 1) % samples.length;
+        sampleCount = Math.min(sampleCount + 1, samples.length);
+    }
+
+    /**
+     * Returns the specified percentile (e.g. 0.95) of the retained samples,
+     * or -1 if there are too few to say.
+     */
+    public long getPercentile(double percentile) {
+        final long[] sorted;
+        synchronized (this) {
+            if (sampleCount == 0 || sampleCount < minimumSamples) {
+                return -1L;
+            }
+            sorted = Arrays.copyOf(samples, sampleCount);
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.max((int) Math.ceil(percentile * sorted.length) - 1, 0)];
+    }
+
+    /**
+     * Returns the mean of the retained samples, or -1 if there are none.
+     */
+    public synchronized long getMean() {
+        if (sampleCount == 0) {
+            return -1L;
+        }
+        long total = 0L;
+        for (int i = 0; i < sampleCount; i++) {
+            total += samples[i];
+        }
+        return total / sampleCount;
+    }
+
+    public synchronized void clear() {
+        sampleCount = 0;
+        nextSample = 0;
+    }
+
+}
@@ -0,0 +1,321 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.AttributeChangeNotification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedNotification;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.export.notification.NotificationPublisher;
+import org.springframework.jmx.export.notification.NotificationPublisherAware;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracks the health of each remote soffit (by serviceUrl) and stops the
+ * {@link SoffitConnectorController} from invoking soffits that are failing.
+ * Each soffit has a circuit with three states:
+ *
+ * <ul>
+ *   <li><code>CLOSED</code> -- requests flow normally;  the circuit opens if
+ *   too many of the recent ones fail (errors, timeouts, or 5xx responses)</li>
+ *   <li><code>OPEN</code> -- requests fail immediately, without contacting the
+ *   soffit, for a cooling-off period</li>
+ *   <li><code>HALF_OPEN</code> -- a single trial request is allowed through;
+ *   its outcome closes or re-opens the circuit</li>
+ * </ul>
+ *
+ * State changes are logged and published as JMX notifications.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=ServiceCircuitBreaker")
+@ManagedNotification(name="javax.management.AttributeChangeNotification",
+        notificationTypes={AttributeChangeNotification.ATTRIBUTE_CHANGE})
+public class ServiceCircuitBreaker implements NotificationPublisherAware {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Number of recent outcomes considered for each soffit.
+     */
+    private static final int WINDOW_SIZE = 20;
+
+    /**
+     * The circuit won't open until at least this many outcomes are known.
+     */
+    private static final int MINIMUM_CALLS = 10;
+
+    private static final double FAILURE_RATE_THRESHOLD = 0.5;
+
+    private static final int OPEN_SECONDS = 30;
+
+    private final ConcurrentMap<String,Circuit> circuits = new ConcurrentHashMap<>();
+    private final AtomicLong notificationSequence = new AtomicLong();
+    private NotificationPublisher notificationPublisher;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Override
+    public void setNotificationPublisher(NotificationPublisher notificationPublisher) {
+        this.notificationPublisher = notificationPublisher;
+    }
+
+    /**
+     * True if the connector may invoke the soffit at the specified URL.
+     * Callers that receive <code>true</code> must report the outcome with
+     * {@link #recordSuccess(String)} or {@link #recordFailure(String)}.
+     */
+    public boolean allowRequest(String serviceUrl) {
+        return getCircuit(serviceUrl).allowRequest();
+    }
+
+    /**
+     * True if {@link #allowRequest(String)} would likely return
+     * <code>true</code> for the soffit at the specified URL.  Unlike that
+     * method, this one has no side effects.
+     */
+    public boolean isAvailable(String serviceUrl) {
+        final Circuit circuit = circuits.get(serviceUrl);
+        return circuit == null || circuit.isAvailable();
+    }
+
+    public void recordSuccess(String serviceUrl) {
+        getCircuit(serviceUrl).record(true);
+    }
+
+    public void recordFailure(String serviceUrl) {
+        getCircuit(serviceUrl).record(false);
+    }
+
+    /**
+     * Reports that an allowed request was abandoned by the connector (e.g. in
+     * favor of a hedged request), which says nothing about the soffit's health.
+     */
+    public void recordCancelled(String serviceUrl) {
+        getCircuit(serviceUrl).cancel();
+    }
+
+    @ManagedAttribute(description="The serviceUrls of soffits whose circuits are not closed")
+    public String[] getOpenCircuits() {
+        final List<String> rslt = new ArrayList<>();
+        for (Map.Entry<String,Circuit> y : circuits.entrySet()) {
+            if (y.getValue().getState() != State.CLOSED) {
+                rslt.add(y.getKey());
+            }
+        }
+        return rslt.toArray(new String[rslt.size()]);
+    }
+
+    @ManagedOperation(description="Returns the state of the circuit for the specified serviceUrl")
+    public String getState(String serviceUrl) {
+        final Circuit circuit = circuits.get(serviceUrl);
+        return circuit != null ? circuit.getState().name() : State.CLOSED.name();
+    }
+
+    @ManagedOperation(description="Closes the circuit for the specified serviceUrl")
+    public void reset(String serviceUrl) {
+        final Circuit circuit = circuits.get(serviceUrl);
+        if (circuit != null) {
+            circuit.reset();
+        }
+    }
+
+    /*
+     * Implementation
+     */
+
+    private Circuit getCircuit(String serviceUrl) {
+        Circuit rslt = circuits.get(serviceUrl);
+        if (rslt == null) {
+            final Circuit created = new Circuit(serviceUrl);
+            rslt = circuits.putIfAbsent(serviceUrl, created);
+            if (rslt == null) {
+                rslt = created;
+            }
+        }
+        return rslt;
+    }
+
+    private void onStateChange(String serviceUrl, State oldState, State newState) {
+        if (newState == State.OPEN) {
+            logger.warn("Opened the circuit for serviceUrl '{}';  requests will fail fast for {} seconds",
+                    serviceUrl, OPEN_SECONDS);
+        } else {
+            logger.info("Circuit for serviceUrl '{}' changed from {} to {}", serviceUrl, oldState, newState);
+        }
+        if (notificationPublisher != null) {
+            final AttributeChangeNotification notification = new AttributeChangeNotification(this,
+                    notificationSequence.incrementAndGet(), System.currentTimeMillis(),
+                    "Circuit for serviceUrl '" + serviceUrl + "' is " + newState,
+                    "State", String.class.getName(), oldState.name(), newState.name());
+            notification.setUserData(serviceUrl);
+            notificationPublisher.sendNotification(notification);
+        }
+    }
+
+    /*
+     * Nested Types
+     */
+
+    private final class Circuit {
+
+        private final String serviceUrl;
+        private final boolean[] outcomes = new boolean[WINDOW_SIZE];  // true == success
+        private int outcomeCount;
+        private int nextOutcome;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private boolean trialInFlight;
+
+        public Circuit(String serviceUrl) {
+            this.serviceUrl = serviceUrl;
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        public synchronized boolean isAvailable() {
+            switch (state) {
+                case OPEN:
+                    return System.currentTimeMillis() - openedAt >= OPEN_SECONDS * 1000L;
+                case HALF_OPEN:
+                    return !trialInFlight;
+                default:
+                    return true;
+            }
+        }
+
+        public boolean allowRequest() {
+            State oldState = null;
+            boolean rslt;
+            synchronized (this) {
+                switch (state) {
+                    case OPEN:
+                        if (System.currentTimeMillis() - openedAt < OPEN_SECONDS * 1000L) {
+                            return false;
+                        }
+                        oldState = state;
+                        state = State.HALF_OPEN;
+                        trialInFlight = true;
+                        rslt = true;
+                        break;
+                    case HALF_OPEN:
+                        // Only one trial at a time
+                        rslt = !trialInFlight;
+                        trialInFlight = true;
+                        break;
+                    default:
+                        rslt = true;
+                        break;
+                }
+            }
+            if (oldState != null) {
+                onStateChange(serviceUrl, oldState, State.HALF_OPEN);
+            }
+            return rslt;
+        }
+
+        public void record(boolean success) {
+            final State oldState;
+            final State newState;
+            synchronized (this) {
+                oldState = state;
+                if (state == State.HALF_OPEN) {
+                    trialInFlight = false;
+                    if (success) {
+                        clearOutcomes();
+                        state = State.CLOSED;
+                    } else {
+                        open();
+                    }
+                } else if (state == State.CLOSED) {
+                    outcomes[nextOutcome] = success;
+                    nextOutcome = (nextOutcome + 1) % WINDOW_SIZE;
+                    outcomeCount = Math.min(outcomeCount + 1, WINDOW_SIZE);
+                    if (!success && outcomeCount >= MINIMUM_CALLS && getFailureRate() >= FAILURE_RATE_THRESHOLD) {
+                        open();
+                    }
+                }
+                newState = state;
+            }
+            if (newState != oldState) {
+                onStateChange(serviceUrl, oldState, newState);
+            }
+        }
+
+        public synchronized void cancel() {
+            if (state == State.HALF_OPEN) {
+                // Let another request serve as the trial
+                trialInFlight = false;
+            }
+        }
+
+        public void reset() {
+            final State oldState;
+            synchronized (this) {
+                oldState = state;
+                clearOutcomes();
+                trialInFlight = false;
+                state = State.CLOSED;
+            }
+            if (oldState != State.CLOSED) {
+                onStateChange(serviceUrl, oldState, State.CLOSED);
+            }
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            clearOutcomes();
+        }
+
+        private void clearOutcomes() {
+            outcomeCount = 0;
+            nextOutcome = 0;
+        }
+
+        private double getFailureRate() {
+            int failures = 0;
+            for (int i = 0; i < outcomeCount; i++) {
+                if (!outcomes[i]) {
+                    failures++;
+                }
+            }
+            return (double) failures / outcomeCount;
+        }
+
+    }
+
+}
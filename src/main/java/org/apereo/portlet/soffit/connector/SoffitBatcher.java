@@ -0,0 +1,540 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apereo.portlet.soffit.connector;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.apereo.portlet.soffit.connector.SoffitConnectorController.FetchRequest;
+import org.apereo.portlet.soffit.connector.SoffitConnectorController.FetchThreadFactory;
+import org.apereo.portlet.soffit.connector.SoffitConnectorController.ResponseWrapper;
+import org.apereo.portlet.soffit.model.v1_0.Batch;
+import org.apereo.portlet.soffit.model.v1_0.BatchResult;
+import org.apereo.portlet.soffit.model.v1_0.Context;
+import org.apereo.portlet.soffit.model.v1_0.Payload;
+import org.apereo.portlet.soffit.model.v1_0.User;
+import org.apereo.portlet.soffit.renderer.SoffitRendererController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sends background fetches from the same page (user) to the same application
+ * as a single request, provided the application has said -- in the
+ * <code>X-Soffit-BatchUrl</code> header of an earlier response -- that it can
+ * render them that way.  Fetches are collected for a few milliseconds, then
+ * sent together;  the shared <code>User</code> and <code>Context</code> are
+ * sent once.  Each part of the response is handled as though it were the
+ * response to an individual request.  Fetches the batch doesn't answer are
+ * fetched on their own.<p>
+ *
+ * The {@link SoffitConnectorController} owns the rest of the fetch pipeline
+ * (payload encoding, the response cache, etc.), which this class reaches
+ * through a {@link Delegate}.
+ */
+/* package-private */ final class SoffitBatcher {
+
+    /**
+     * Background fetches are collected for this many milliseconds and sent
+     * as one batch.  A batch is sent sooner if the markup phase needs it, or
+     * if it's full.
+     */
+    private static final int BATCH_LINGER_MILLIS = 10;
+
+    private static final int MAX_BATCH_SIZE = 20;
+
+    /**
+     * Orders batched fetches the way the renderer renders them.
+     */
+    private static final Comparator<BatchedFetch> EARLIEST_DEADLINE_FIRST = new Comparator<BatchedFetch>() {
+        @Override
+        public int compare(BatchedFetch o1, BatchedFetch o2) {
+            return Long.compare(o1.getFetchRequest().getDeadline(), o2.getFetchRequest().getDeadline());
+        }
+    };
+
+    private final Delegate delegate;
+    private final Executor fetchExecutor;
+    private final ObjectMapper objectMapper;
+    private final HttpConnectionPool httpConnectionPool;
+    private final ServiceCircuitBreaker serviceCircuitBreaker;
+    private final ReplicaSelector replicaSelector;
+    private final SoffitMetrics soffitMetrics;
+
+    private final ScheduledExecutorService batchTimer = new ScheduledThreadPoolExecutor(1, new FetchThreadFactory());
+    private final ConcurrentMap<String,FetchBatch> openBatches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,String> batchUrls = new ConcurrentHashMap<>();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public SoffitBatcher(Delegate delegate, Executor fetchExecutor, ObjectMapper objectMapper,
+            HttpConnectionPool httpConnectionPool, ServiceCircuitBreaker serviceCircuitBreaker,
+            ReplicaSelector replicaSelector, SoffitMetrics soffitMetrics) {
+        this.delegate = delegate;
+        this.fetchExecutor = fetchExecutor;
+        this.objectMapper = objectMapper;
+        this.httpConnectionPool = httpConnectionPool;
+        this.serviceCircuitBreaker = serviceCircuitBreaker;
+        this.replicaSelector = replicaSelector;
+        this.soffitMetrics = soffitMetrics;
+    }
+
+    public void shutdown() {
+        batchTimer.shutdownNow();
+    }
+
+    /**
+     * Learns, from a response, whether the soffit at <code>serviceUrl</code>
+     * can be rendered in batches, and where.
+     */
+    public void learnBatchUrl(final HttpResponse httpResponse, final String serviceUrl, final String replicaUrl,
+            final int statusCode) {
+
+        final Header batchUrlHeader = httpResponse.getFirstHeader(SoffitRendererController.BATCH_URL_HEADER);
+        if (batchUrlHeader != null) {
+            try {
+                batchUrls.put(serviceUrl, URI.create(replicaUrl).resolve(batchUrlHeader.getValue()).toString());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring invalid batch URL '{}' for serviceUrl '{}'", batchUrlHeader.getValue(), serviceUrl);
+            }
+        } else if (statusCode == HttpStatus.SC_OK) {
+            batchUrls.remove(serviceUrl);
+        }
+
+    }
+
+    /**
+     * Adds the fetch to the open batch for this user and the soffit's
+     * application, provided the application has said it can render batches
+     * and the fetch is suitable;  otherwise returns null.  Conditional
+     * requests are not batched, so that they may still be answered with
+     * <code>304 Not Modified</code>.
+     *
+     * @param userKey Identifies the page (user) the fetch belongs to;  users
+     * without a session share batches, since each item carries its own payload
+     */
+    public BatchedFetch addIfPossible(final String userKey, final FetchRequest fetchRequest) {
+
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final String batchUrl = batchUrls.get(serviceUrl);
+        final ResponseWrapper cachedValue = fetchRequest.getCachedValue();
+        if (batchUrl == null
+                || fetchRequest.getReplicaUrls().size() != 1
+                || !(fetchRequest.getPayload() instanceof Payload)
+                || (cachedValue != null && cachedValue.getEtag() != null)
+                || !serviceUrl.startsWith(batchUrl + "/")) {
+            return null;
+        }
+        final String module = serviceUrl.substring(batchUrl.length() + 1);
+        if (module.isEmpty() || module.contains("/")) {
+            return null;
+        }
+
+        final String batchKey = userKey + ":" + batchUrl;
+        while (true) {
+            FetchBatch batch = openBatches.get(batchKey);
+            if (batch == null) {
+                final FetchBatch created = new FetchBatch(batchKey, batchUrl);
+                batch = openBatches.putIfAbsent(batchKey, created);
+                if (batch == null) {
+                    batch = created;
+                    scheduleFlush(created);
+                }
+            }
+            final BatchedFetch rslt = batch.add(fetchRequest, module);
+            if (rslt != null) {
+                logger.debug("Added serviceUrl '{}' to a batch for '{}'", serviceUrl, batchUrl);
+                return rslt;
+            }
+            // That batch was sent in the meantime;  start another
+            openBatches.remove(batchKey, batch);
+        }
+
+    }
+
+    /*
+     * Implementation
+     */
+
+    private void scheduleFlush(final FetchBatch batch) {
+        try {
+            batchTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    batch.flush();
+                }
+            }, BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down;  the markup phase will flush it
+            logger.debug("Unable to schedule a batch to be sent", e);
+        }
+    }
+
+    /**
+     * Sends the fetches in one request to the application that serves them
+     * and completes each with its part of the response.  The shared
+     * <code>User</code> and <code>Context</code> are sent once.  Fetches that
+     * are not answered by the batch -- because it failed, or because the
+     * circuit for their soffit is open, or because their deadline has passed
+     * or would pass before the renderer reached them -- are fetched on their
+     * own instead.
+     */
+    private void sendBatch(final String batchUrl, final List<BatchedFetch> fetches) {
+
+        // The renderer renders items in turn, earliest deadline first
+        final List<BatchedFetch> ordered = new ArrayList<>(fetches);
+        Collections.sort(ordered, EARLIEST_DEADLINE_FIRST);
+
+        final Batch batch = new Batch();
+        final Map<String,BatchedFetch> fetchesById = new HashMap<>();
+        long remainingMillis = 0L;
+        long expectedMillis = 0L;
+        long maxResponseBytes = 0L;
+        int connectTimeout = 0;
+        int readTimeout = 0;
+        for (BatchedFetch fetch : ordered) {
+            final FetchRequest fetchRequest = fetch.getFetchRequest();
+            if (fetch.getFuture().isCancelled()) {
+                // Nobody is waiting for it
+                continue;
+            }
+            if (fetches.size() == 1 || fetchRequest.getRemainingMillis() <= 0) {
+                fetchIndividually(fetch);
+                continue;
+            }
+
+            // Would it be rendered in time behind the items ahead of it?
+            final long meanLatency = replicaSelector.getMeanLatency(fetchRequest.getServiceUrl());
+            if (meanLatency > 0L && expectedMillis + meanLatency > fetchRequest.getRemainingMillis()) {
+                logger.debug("Fetching serviceUrl '{}' on its own because its deadline is too near to wait for the batch",
+                        fetchRequest.getServiceUrl());
+                fetchIndividually(fetch);
+                continue;
+            }
+
+            // Checked last, because it may claim the trial request of a half-open circuit
+            if (!serviceCircuitBreaker.allowRequest(fetchRequest.getServiceUrl())) {
+                fetchIndividually(fetch);
+                continue;
+            }
+            expectedMillis += Math.max(meanLatency, 0L);
+
+            final Payload payload = (Payload) fetchRequest.getPayload();
+            if (batch.getItems().isEmpty()) {
+                batch.setUser(payload.getUser()).setContext(payload.getContext());
+            }
+            final Payload itemPayload = new Payload();
+            itemPayload.setRequest(payload.getRequest());
+            itemPayload.setDefinition(payload.getDefinition());
+            if (!Objects.equals(payload.getUser(), batch.getUser())) {
+                itemPayload.setUser(payload.getUser() != null ? payload.getUser() : new User());
+            }
+            if (!Objects.equals(payload.getContext(), batch.getContext())) {
+                itemPayload.setContext(payload.getContext() != null ? payload.getContext() : new Context());
+            }
+
+            final String id = Integer.toString(batch.getItems().size());
+            batch.getItems().add(new Batch.Item()
+                    .setId(id)
+                    .setModule(fetch.getModule())
+                    .setRenderBudget(fetchRequest.getRemainingMillis())
+                    .setPayload(itemPayload));
+            fetchesById.put(id, fetch);
+            remainingMillis = Math.max(remainingMillis, fetchRequest.getRemainingMillis());
+            maxResponseBytes += fetchRequest.getMaxResponseBytes();
+            connectTimeout = Math.max(connectTimeout, fetchRequest.getConnectTimeout());
+            readTimeout = Math.max(readTimeout, fetchRequest.getReadTimeout());
+        }
+        if (fetchesById.isEmpty()) {
+            return;
+        }
+
+        final HttpPost postMethod = new HttpPost(batchUrl);
+        postMethod.setConfig(RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout((int) Math.min(readTimeout, remainingMillis))
+                .build());
+        final long startTime = System.currentTimeMillis();
+        try {
+
+            postMethod.setHeader(SoffitRendererController.PAYLOAD_CLASS_HEADER, Payload.class.getName());
+            postMethod.setHeader(SoffitRendererController.RENDER_BUDGET_HEADER, Long.toString(remainingMillis));
+            postMethod.setEntity(delegate.createPayloadEntity(batchUrl, batchUrl, batch));
+
+            final HttpResponse httpResponse = httpConnectionPool.getHttpClient().execute(postMethod);
+            final int statusCode = httpResponse.getStatusLine().getStatusCode();
+            final long latency = System.currentTimeMillis() - startTime;
+            logger.debug("HTTP response code for batch url '{}' with {} items was '{}'",
+                    batchUrl, fetchesById.size(), statusCode);
+            delegate.learnPayloadFormats(httpResponse, batchUrl, statusCode);
+
+            if (statusCode == HttpStatus.SC_OK) {
+                final byte[] bytes = delegate.readResponse(httpResponse.getEntity(), maxResponseBytes,
+                        remainingMillis - latency);
+                final BatchResult result = objectMapper.readValue(bytes, BatchResult.class);
+                for (BatchResult.Part part : result.getParts()) {
+                    final BatchedFetch fetch = fetchesById.get(part.getId());
+                    if (fetch != null && part.getHeaders().containsKey(SoffitRendererController.BUDGET_EXHAUSTED_HEADER)) {
+                        // Not answered;  the renderer ran out of time before reaching it
+                        logger.debug("Skipped serviceUrl '{}' in a batch because its render budget ran out",
+                                fetch.getFetchRequest().getServiceUrl());
+                    } else if (fetch != null) {
+                        final ResponseWrapper response = processBatchPart(fetch.getFetchRequest(), part, latency);
+                        fetchesById.remove(part.getId());
+                        fetch.getFuture().set(response);
+                    }
+                }
+            } else {
+                logger.warn("Failed to render a batch at '{}';  HttpStatus={}", batchUrl, statusCode);
+                if (statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED) {
+                    // The application no longer renders batches
+                    for (BatchedFetch fetch : fetchesById.values()) {
+                        batchUrls.remove(fetch.getFetchRequest().getServiceUrl(), batchUrl);
+                    }
+                }
+                EntityUtils.consume(httpResponse.getEntity());
+            }
+
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to render a batch at '{}'", batchUrl, e);
+        } finally {
+            postMethod.releaseConnection();
+            // Whatever the batch didn't answer is fetched on its own
+            for (BatchedFetch fetch : fetchesById.values()) {
+                serviceCircuitBreaker.recordCancelled(fetch.getFetchRequest().getServiceUrl());
+                fetchIndividually(fetch);
+            }
+        }
+
+    }
+
+    /**
+     * Handles one part of a batch response as though it were the response to
+     * an individual request.
+     */
+    private ResponseWrapper processBatchPart(final FetchRequest fetchRequest, final BatchResult.Part part,
+            final long latencyMillis) {
+
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final int statusCode = part.getStatus();
+        final HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+        for (Map.Entry<String,String> y : part.getHeaders().entrySet()) {
+            httpResponse.setHeader(y.getKey(), y.getValue());
+        }
+        soffitMetrics.recordRemoteCall(serviceUrl, latencyMillis, statusCode);
+        delegate.learnSoffitDeclarations(httpResponse, serviceUrl, statusCode);
+
+        final byte[] bytes = part.getContent() != null
+                ? part.getContent().getBytes(StandardCharsets.UTF_8)
+                : ArrayUtils.EMPTY_BYTE_ARRAY;
+        ResponseWrapper rslt;
+        if (statusCode != HttpStatus.SC_OK) {
+            logger.error("Failed to get content for serviceUrl '{}' in a batch;  HttpStatus={}", serviceUrl, statusCode);
+            rslt = ResponseWrapper.forFailure("Remote service returned HttpStatus=" + statusCode, statusCode);
+        } else if (bytes.length > fetchRequest.getMaxResponseBytes()) {
+            logger.error("Rejected the response for serviceUrl '{}' in a batch:  Response too large", serviceUrl);
+            rslt = ResponseWrapper.forFailure("Response too large", HttpStatus.SC_BAD_GATEWAY);
+        } else {
+            soffitMetrics.recordResponseSize(serviceUrl, bytes.length);
+            rslt = delegate.cacheResponseIfAppropriate(httpResponse, bytes, fetchRequest);
+        }
+
+        if (rslt.getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            serviceCircuitBreaker.recordSuccess(serviceUrl);
+        } else {
+            serviceCircuitBreaker.recordFailure(serviceUrl);
+        }
+        delegate.cacheFailureIfAppropriate(fetchRequest, rslt);
+        return rslt;
+
+    }
+
+    private void fetchIndividually(final BatchedFetch fetch) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetch.getFuture().set(delegate.fetch(fetch.getFetchRequest()));
+                } catch (RuntimeException e) {
+                    fetch.getFuture().setException(e);
+                }
+            }
+        };
+        try {
+            fetchExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /*
+     * Nested Types
+     */
+
+    /**
+     * The parts of the fetch pipeline that belong to the
+     * {@link SoffitConnectorController}.
+     */
+    /* package-private */ interface Delegate {
+
+        /**
+         * Fetches the content on its own (i.e. not in a batch).
+         */
+        ResponseWrapper fetch(FetchRequest fetchRequest);
+
+        HttpEntity createPayloadEntity(String serviceUrl, String replicaUrl, Object payload);
+
+        void learnPayloadFormats(HttpResponse httpResponse, String replicaUrl, int statusCode);
+
+        void learnSoffitDeclarations(HttpResponse httpResponse, String serviceUrl, int statusCode);
+
+        byte[] readResponse(HttpEntity entity, long maxResponseBytes, long remainingMillis) throws IOException;
+
+        ResponseWrapper cacheResponseIfAppropriate(HttpResponse httpResponse, byte[] bytes, FetchRequest fetchRequest);
+
+        void cacheFailureIfAppropriate(FetchRequest fetchRequest, ResponseWrapper response);
+
+    }
+
+    /**
+     * Background fetches from the same page waiting to be sent together to
+     * the application that serves them.
+     */
+    /* package-private */ final class FetchBatch {
+        private final String key;
+        private final String batchUrl;
+        private final List<BatchedFetch> fetches = new ArrayList<>();
+        private boolean sent = false;
+
+        public FetchBatch(String key, String batchUrl) {
+            this.key = key;
+            this.batchUrl = batchUrl;
+        }
+
+        /**
+         * Adds a fetch to this batch, unless it has been sent already.
+         *
+         * @return The fetch, or null if the batch has been sent
+         */
+        public synchronized BatchedFetch add(FetchRequest fetchRequest, String module) {
+            if (sent) {
+                return null;
+            }
+            final BatchedFetch rslt = new BatchedFetch(this, fetchRequest, module);
+            fetches.add(rslt);
+            if (fetches.size() >= MAX_BATCH_SIZE) {
+                flush();
+            }
+            return rslt;
+        }
+
+        /**
+         * Sends this batch on a background thread, unless it has been sent
+         * already.
+         */
+        public void flush() {
+            final List<BatchedFetch> toSend;
+            synchronized (this) {
+                if (sent) {
+                    return;
+                }
+                sent = true;
+                toSend = new ArrayList<>(fetches);
+            }
+            openBatches.remove(key, this);
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    sendBatch(batchUrl, toSend);
+                }
+            };
+            try {
+                fetchExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+    }
+
+    /* package-private */ static final class BatchedFetch {
+        private final FetchBatch batch;
+        private final FetchRequest fetchRequest;
+        private final String module;
+        private final SettableListenableFuture<ResponseWrapper> future = new SettableListenableFuture<>();
+
+        public BatchedFetch(FetchBatch batch, FetchRequest fetchRequest, String module) {
+            this.batch = batch;
+            this.fetchRequest = fetchRequest;
+            this.module = module;
+        }
+
+        /**
+         * The batch this fetch belongs to.
+         */
+        public FetchBatch getBatch() {
+            return batch;
+        }
+
+        public FetchRequest getFetchRequest() {
+            return fetchRequest;
+        }
+
+        /**
+         * The name by which the application knows the soffit.
+         */
+        public String getModule() {
+            return module;
+        }
+
+        public SettableListenableFuture<ResponseWrapper> getFuture() {
+            return future;
+        }
+    }
+
+}
@@ -19,31 +19,74 @@
 
 package org.apereo.portlet.soffit.connector;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.portlet.PortletMode;
 import javax.portlet.PortletPreferences;
+import javax.portlet.PortletRequest;
+import javax.portlet.PortletSession;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
+import javax.portlet.ResourceRequest;
+import javax.portlet.ResourceResponse;
+import javax.portlet.ResourceURL;
+import javax.portlet.WindowState;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.apereo.portlet.soffit.renderer.SoffitRendererController;
 import org.slf4j.Logger;
@@ -58,8 +101,13 @@ import org.springframework.core.OrderComparator;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.portlet.bind.annotation.RenderMapping;
+import org.springframework.web.portlet.bind.annotation.ResourceMapping;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
 
 @Controller
 @RequestMapping(value={"VIEW","EDIT","HELP"})
@@ -69,33 +117,308 @@ public class SoffitConnectorController implements ApplicationContextAware {
      * Preferences that begin with this String will not be shared with the remote soffit.
      */
     /* package-private */ static final String CONNECTOR_PREFERENCE_PREFIX = SoffitConnectorController.class.getName();
+
+    /**
+     * URL of the remote soffit.  This preference may have several values, one
+     * for each replica of the soffit;  the first is also used to identify the
+     * soffit (e.g. in the cache).
+     */
     private static final String SERVICE_URL_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".serviceUrl";
     private static final String PAYLOAD_CLASS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".payloadClass";
+    private static final String STREAM_RESPONSE_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".streamResponse";
+
+    /**
+     * Connect timeout for this soffit in milliseconds (optional).
+     */
+    private static final String CONNECT_TIMEOUT_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".connectTimeout";
+
+    /**
+     * How long, in milliseconds, the connector will wait for this soffit to
+     * respond (optional).  This is also the soffit's render budget.
+     */
+    private static final String READ_TIMEOUT_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".readTimeout";
+
+    /**
+     * If true, and the soffit has more than one replica, a second request is
+     * sent to another replica when the first is slower than usual (optional).
+     */
+    private static final String HEDGE_REQUESTS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".hedgeRequests";
+
+    /**
+     * The parts of the payload this soffit needs (optional);  see
+     * {@link PayloadFields}.  If not specified, the connector uses the
+     * selection the soffit itself most recently declared with the
+     * <code>X-Soffit-PayloadFields</code> response header, if any.
+     */
+    private static final String PAYLOAD_FIELDS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".payloadFields";
+
+    /**
+     * How long, in seconds, a timeout (including a 504 response) from this
+     * soffit is remembered before the soffit is invoked again (optional);  0
+     * disables.  Meanwhile every user is shown the same failure content.
+     */
+    private static final String TIMEOUT_CACHE_SECONDS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".failureCacheSeconds.timeout";
+
+    /**
+     * How long, in seconds, a server error (a 5xx response, or a soffit that
+     * can't be reached) is remembered (optional);  0 disables.
+     */
+    private static final String SERVER_ERROR_CACHE_SECONDS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".failureCacheSeconds.serverError";
+
+    /**
+     * How long, in seconds, a client error (a 4xx or other unexpected
+     * response) is remembered (optional);  0 disables.  These often depend on
+     * the individual request, so they are not remembered by default.
+     */
+    private static final String CLIENT_ERROR_CACHE_SECONDS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".failureCacheSeconds.clientError";
+
+    /**
+     * Largest response, in bytes, the connector will accept from this soffit
+     * (optional).  The connector stops reading a larger response and treats
+     * it as a failure.
+     */
+    private static final String MAX_RESPONSE_BYTES_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".maxResponseBytes";
+
+    /**
+     * If false, this soffit is always invoked on its own, even if it's served
+     * by an application that can render several soffits in one request
+     * (optional;  the default is true).
+     */
+    private static final String BATCH_REQUESTS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".batchRequests";
+
+    /**
+     * If true, the connector never waits for this soffit while rendering the
+     * page:  it writes a placeholder, and the browser fetches the markup
+     * afterwards (optional;  the default is false).
+     */
+    private static final String DEFER_RENDERING_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".deferRendering";
+
+    /**
+     * Number of milliseconds the connector waits for this soffit while
+     * rendering the page before it writes a placeholder instead (optional;
+     * by default the connector waits until the read timeout).
+     */
+    private static final String DEFER_AFTER_MILLIS_PREFERENCE = CONNECTOR_PREFERENCE_PREFIX + ".deferAfterMillis";
+
+    /**
+     * Name of the (Spring Environment) property that lists the serviceUrls of
+     * public-scope soffits to fetch -- and cache -- when the connector starts,
+     * separated by commas.  May be specified as a portlet init-param, a
+     * context parameter, a JNDI entry, or a system property.
+     */
+    private static final String WARM_UP_SERVICE_URLS_PROPERTY = CONNECTOR_PREFERENCE_PREFIX + ".warmUpServiceUrls";
+
+    /**
+     * Name of the (Spring Environment) property that, if false, keeps the
+     * connector from compressing the responses it caches (optional;  the
+     * default is true).  Responses cached already are still decompressed.
+     */
+    private static final String COMPRESS_RESPONSES_PROPERTY = CONNECTOR_PREFERENCE_PREFIX + ".compressResponses";
+
+    /**
+     * Name of the (Spring Environment) property that sets the size (in bytes)
+     * below which cached responses are stored uncompressed (optional).
+     */
+    private static final String MIN_COMPRESSIBLE_RESPONSE_BYTES_PROPERTY =
+            CONNECTOR_PREFERENCE_PREFIX + ".minCompressibleResponseBytes";
 
     private static final String DEFAULT_PAYLOAD_CLASS = org.apereo.portlet.soffit.model.v1_0.Payload.class.getName();
+
+    /**
+     * Resource ID of the portlet resource URL from which the browser fetches
+     * deferred markup.
+     */
+    private static final String DEFERRED_RESOURCE_ID = "deferredContent";
+
+    /**
+     * Name of the resource parameter that identifies the deferred fetch.  Each
+     * deferred render gets a token of its own, so that users without a session
+     * (who may share a portlet window ID) never collect each other's fetches.
+     */
+    private static final String DEFERRED_TOKEN_PARAMETER = "token";
+
+    /**
+     * Markup written in place of a deferred soffit;  the arguments are the ID
+     * of the placeholder element and the resource URL.  Scripts inserted with
+     * <code>innerHTML</code> don't run, so the placeholder replaces them with
+     * new elements.
+     */
+    private static final String DEFERRED_PLACEHOLDER_FORMAT =
+            "<div id=\"%1$s\" class=\"soffit-deferred\" aria-busy=\"true\"></div>\n"
+            + "<script type=\"text/javascript\">\n"
+            + "(function() {\n"
+            + "    var placeholder = document.getElementById('%1$s');\n"
+            + "    var xhr = new XMLHttpRequest();\n"
+            + "    xhr.open('GET', '%2$s');\n"
+            + "    xhr.onload = function() {\n"
+            + "        placeholder.removeAttribute('aria-busy');\n"
+            + "        if (xhr.status !== 200) { return; }\n"
+            + "        placeholder.innerHTML = xhr.responseText;\n"
+            + "        var scripts = Array.prototype.slice.call(placeholder.getElementsByTagName('script'));\n"
+            + "        for (var i = 0; i < scripts.length; i++) {\n"
+            + "            var script = document.createElement('script');\n"
+            + "            if (scripts[i].src) { script.src = scripts[i].src; } else { script.text = scripts[i].text; }\n"
+            + "            scripts[i].parentNode.replaceChild(script, scripts[i]);\n"
+            + "        }\n"
+            + "    };\n"
+            + "    xhr.send();\n"
+            + "})();\n"
+            + "</script>\n";
+    /**
+     * Default connect and read timeouts.
+     */
     private static final int TIMEOUT_SECONDS = 10;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    private final PoolingHttpClientConnectionManager poolingHttpClientConnectionManager = new PoolingHttpClientConnectionManager();
+    /**
+     * Expired responses that carry an <code>ETag</code> are kept this long (in
+     * seconds) beyond <code>max-age</code> so they may be revalidated.
+     */
+    private static final int VALIDATOR_RETENTION_SECONDS = 3600;
+
+    /**
+     * Streamed responses larger than this will be passed through to the
+     * portlet, but not cached.
+     */
+    private static final int MAX_CACHEABLE_RESPONSE_BYTES = 1024 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * Default for <code>MAX_RESPONSE_BYTES_PREFERENCE</code>.
+     */
+    private static final int DEFAULT_MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Memory for buffering a response is reserved from the
+     * {@link ResponseMemoryBudget} in increments of this size.
+     */
+    private static final int BUFFER_RESERVATION_BYTES = 64 * 1024;
+
+    /**
+     * Cached responses smaller than this are stored uncompressed, unless the
+     * <code>minCompressibleResponseBytes</code> property says otherwise.
+     */
+    private static final int DEFAULT_MIN_COMPRESSIBLE_RESPONSE_BYTES = 2048;
+
+    /**
+     * Payloads smaller than this are sent uncompressed.  Since payloads are
+     * streamed, the decision is based on the size of the previous payload
+     * sent to the same soffit.
+     */
+    private static final int MIN_COMPRESSIBLE_PAYLOAD_BYTES = 1024;
+
+    /**
+     * Upper bound on the number of remote soffit fetches that may run in the
+     * background at once (on behalf of all pages being rendered by this node).
+     */
+    private static final int MAX_CONCURRENT_FETCHES = 64;
+
+    /**
+     * Fetches beyond <code>MAX_CONCURRENT_FETCHES</code> wait in a queue of
+     * this size;  once it's full, soffits are simply fetched during the markup
+     * phase on the portal's thread.
+     */
+    private static final int MAX_QUEUED_FETCHES = 256;
+
+    /**
+     * Upper bound on the number of hedged-fetch attempts (primary and hedge)
+     * in flight at once.  They run on a pool of their own, because the
+     * fetches that wait for them usually run on the fetch pool;  attempts
+     * beyond this bound are not queued (see fetchContentHedged).
+     */
+    private static final int MAX_CONCURRENT_ATTEMPTS = 2 * MAX_CONCURRENT_FETCHES;
+
+    /**
+     * A fresh, public-scope response is refreshed in the background when it
+     * enters this fraction of its lifetime (i.e. the last 20%)...
+     */
+    private static final double REFRESH_AHEAD_FRACTION = 0.2;
+
+    /**
+     * ...provided it has been served from the cache at least this many times.
+     */
+    private static final int REFRESH_AHEAD_MIN_HITS = 10;
 
-    private final RequestConfig requestConfig = RequestConfig.custom()
-            .setSocketTimeout(TIMEOUT_SECONDS * 1000)
-            .setConnectTimeout(TIMEOUT_SECONDS * 1000)
-            .build();
+    /**
+     * Default number of seconds for which timeouts and server errors are
+     * remembered.
+     */
+    private static final int FAILURE_CACHE_SECONDS = 5;
 
-    private final HttpClientBuilder httpClientBuilder = HttpClientBuilder
-            .create()
-            .setDefaultRequestConfig(requestConfig)
-            .setConnectionManager(poolingHttpClientConnectionManager)
-            .setConnectionManagerShared(true);  // Prevents the client from shutting down the pool
+    /**
+     * Afterburner generates bytecode to access the properties of payload
+     * classes, in place of reflection.
+     */
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new AfterburnerModule());
+    private final ConcurrentMap<Class<?>,ObjectWriter> payloadWriters = new ConcurrentHashMap<>();
+
+    /**
+     * Used for soffits that accept payloads in the (binary) Smile format.
+     */
+    private final ObjectMapper smileObjectMapper =
+            new ObjectMapper(new SmileFactory()).registerModule(new AfterburnerModule());
+    private final ConcurrentMap<Class<?>,ObjectWriter> smilePayloadWriters = new ConcurrentHashMap<>();
 
     private ApplicationContext applicationContext;
     private final List<ISoffitLoader> soffitLoaders = new ArrayList<>();
+    private final ConcurrentMap<String,Constructor<?>> payloadConstructors = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+    private ThreadPoolExecutor fetchExecutor;
+    private ThreadPoolExecutor attemptExecutor;
+    private SoffitBatcher soffitBatcher;
+    private final ConcurrentMap<String,PendingFetch> pendingFetches = new ConcurrentHashMap<>();
+    private final Set<String> gzipPayloadServiceUrls =
+            Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+    private final Set<String> smilePayloadServiceUrls =
+            Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+    private final ConcurrentMap<String,Long> payloadSizes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,PayloadFields> declaredPayloadFields = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,CacheVary> declaredCacheVaries = new ConcurrentHashMap<>();
+    private final Set<CacheTuple> revalidationsInProgress =
+            Collections.newSetFromMap(new ConcurrentHashMap<CacheTuple,Boolean>());
 
     @Autowired
     @Qualifier(value="org.apereo.portlet.soffit.connector.SoffitConnectorController.RESPONSE_CACHE")
     private Cache responseCache;
 
+    @Autowired
+    private ResponseCoalescer responseCoalescer;
+
+    @Autowired(required=false)
+    @Qualifier(value="responseCompressor")
+    private IResponseCompressor responseCompressor;
+
+    private boolean compressResponses = true;
+    private int minCompressibleResponseBytes = DEFAULT_MIN_COMPRESSIBLE_RESPONSE_BYTES;
+
+    @Autowired
+    private ServiceCircuitBreaker serviceCircuitBreaker;
+
+    @Autowired
+    private HttpConnectionPool httpConnectionPool;
+
+    @Autowired
+    private ReplicaSelector replicaSelector;
+
+    @Autowired
+    private SoffitMetrics soffitMetrics;
+
+    @Autowired
+    private CacheTagIndex cacheTagIndex;
+
+    @Autowired
+    private ResponseMemoryBudget responseMemoryBudget;
+
+    @Autowired
+    private SoffitLoaderMemo soffitLoaderMemo;
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Override
@@ -108,6 +431,40 @@ public class SoffitConnectorController implements ApplicationContextAware {
         final Map<String, ISoffitLoader> map = BeanFactoryUtils.beansOfTypeIncludingAncestors(applicationContext, ISoffitLoader.class);
         soffitLoaders.addAll(map.values());
         Collections.sort(soffitLoaders, new OrderComparator());
+
+        compressResponses = applicationContext.getEnvironment()
+                .getProperty(COMPRESS_RESPONSES_PROPERTY, Boolean.class, Boolean.TRUE);
+        minCompressibleResponseBytes = applicationContext.getEnvironment()
+                .getProperty(MIN_COMPRESSIBLE_RESPONSE_BYTES_PROPERTY, Integer.class, DEFAULT_MIN_COMPRESSIBLE_RESPONSE_BYTES);
+
+        fetchExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_FETCHES, MAX_CONCURRENT_FETCHES,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_FETCHES),
+                new FetchThreadFactory());
+        fetchExecutor.allowCoreThreadTimeOut(true);
+        attemptExecutor = new ThreadPoolExecutor(0, MAX_CONCURRENT_ATTEMPTS,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new FetchThreadFactory());
+        soffitBatcher = new SoffitBatcher(new BatcherDelegate(), fetchExecutor, objectMapper, httpConnectionPool,
+                serviceCircuitBreaker, replicaSelector, soffitMetrics);
+
+        warmUp();
+
+        final CacheConfiguration cacheConfig = responseCache.getCacheConfiguration();
+        if (cacheConfig.isCountBasedTuned()) {
+            logger.warn("The soffit response cache '{}' is sized by entry count (maxEntriesLocalHeap={});  "
+                    + "responses vary greatly in size, so maxBytesLocalHeap is recommended instead",
+                    responseCache.getName(), cacheConfig.getMaxEntriesLocalHeap());
+        } else {
+            logger.info("The soffit response cache '{}' is sized at maxBytesLocalHeap={}, maxBytesLocalOffHeap={}, "
+                    + "maxBytesLocalDisk={}", responseCache.getName(), cacheConfig.getMaxBytesLocalHeap(),
+                    cacheConfig.getMaxBytesLocalOffHeap(), cacheConfig.getMaxBytesLocalDisk());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        soffitBatcher.shutdown();
+        fetchExecutor.shutdownNow();
+        attemptExecutor.shutdownNow();
     }
 
     @RenderMapping
@@ -119,48 +476,147 @@ public class SoffitConnectorController implements ApplicationContextAware {
             throw new IllegalStateException("Missing portlet prefernce value for " + SERVICE_URL_PREFERENCE);
         }
 
+        if (PortletRequest.RENDER_HEADERS.equals(req.getAttribute(PortletRequest.RENDER_PART))) {
+            /*
+             * The portal is using two-phase rendering, which means it renders
+             * headers for every portlet on the page before it renders markup
+             * for any of them.  We use this opportunity to start the remote
+             * fetch in the background, so that all the soffits on the page are
+             * invoked concurrently.  The markup phase will collect the result.
+             */
+            startFetchIfNecessary(req, res, serviceUrl);
+            return;
+        }
+
         // First look in cache for an existing response that applies to this request
-        ResponseWrapper responseValue = fetchContentFromCacheIfAvailable(req, serviceUrl);
-        if (responseValue != null) {
+        final CacheKeys cacheKeys = createCacheKeys(req, serviceUrl);
+        final ResponseWrapper cachedValue = fetchContentFromCacheIfAvailable(cacheKeys, true);
+        ResponseWrapper responseValue = null;
+        CountingOutputStream sink = null;
+        if (cachedValue != null && cachedValue.isFresh()) {
             logger.debug("Response value obtained from cache for serviceUrl '{}'", serviceUrl);
+            responseValue = cachedValue;
+            final ResponseWrapper popularValue = getPopularValueNearingExpiry(cacheKeys);
+            if (popularValue != null) {
+                logger.debug("Refreshing the popular response for serviceUrl '{}' ahead of its expiry", serviceUrl);
+                revalidateInBackground(req, res, serviceUrl, cacheKeys, cacheKeys.getPublicKey(), popularValue);
+            }
+        } else if (cachedValue != null && cachedValue.isUsableWhileRevalidating()) {
+            logger.debug("Serving a stale response for serviceUrl '{}' while revalidating in the background", serviceUrl);
+            responseValue = cachedValue;
+            revalidateInBackground(req, res, serviceUrl, cacheKeys, getStaleKey(cacheKeys), cachedValue);
         } else {
+            final int deferAfterMillis = Boolean.valueOf(prefs.getValue(DEFER_RENDERING_PREFERENCE, "false"))
+                    ? 0
+                    : getIntPreference(prefs, DEFER_AFTER_MILLIS_PREFERENCE, -1);
+            final String pendingFetchKey = getPendingFetchKey(req);
+            PendingFetch pendingFetch = pendingFetchKey != null ? takePendingFetch(pendingFetchKey, cacheKeys) : null;
+            final ResponseWrapper cachedFailure = pendingFetch == null ? fetchFailureFromCacheIfAvailable(cacheKeys) : null;
+            if (pendingFetch == null && cachedFailure == null && deferAfterMillis >= 0) {
+                // Deferred rendering needs the fetch to proceed in the background
+                pendingFetch = startFetch(req, createFetchRequest(req, res, serviceUrl, cacheKeys, cachedValue, null));
+            }
+            if (pendingFetch != null && deferAfterMillis >= 0 && !awaitFetch(pendingFetch, deferAfterMillis)) {
+                logger.debug("Deferring the response for serviceUrl '{}' to the browser", serviceUrl);
+                soffitMetrics.recordDeferredRender(serviceUrl);
+                expireAbandonedFetches();
+                final String token = UUID.randomUUID().toString();
+                pendingFetches.put(getDeferredFetchKey(token), pendingFetch);
+                writeDeferredPlaceholder(res, serviceUrl, token);
+                return;
+            }
+            if (pendingFetch != null) {
+                logger.debug("Collecting the response started in the background for serviceUrl '{}'", serviceUrl);
+                responseValue = awaitFetch(pendingFetch);
+            } else if (cachedFailure != null) {
+                logger.debug("The soffit at serviceUrl '{}' failed recently;  not invoking it again yet", serviceUrl);
+                soffitMetrics.recordCachedFailure(serviceUrl);
+                responseValue = cachedFailure;
+            } else {
+                logger.debug("No applicable response in cache;  invoking serviceUrl '{}'", serviceUrl);
+                if (Boolean.valueOf(prefs.getValue(STREAM_RESPONSE_PREFERENCE, "false"))) {
+                    try {
+                        sink = new CountingOutputStream(res.getPortletOutputStream());
+                    } catch (IOException e) {
+                        logger.error("Failed to obtain the output stream for serviceUrl '{}'", serviceUrl, e);
+                    }
+                }
+                responseValue = fetchContentCoalesced(createFetchRequest(req, res, serviceUrl, cacheKeys, cachedValue, sink));
+            }
+            if ((responseValue == null || responseValue.isFailure())
+                    && (sink == null || sink.getByteCount() == 0)
+                    && cachedValue != null && cachedValue.isUsableIfError()) {
+                logger.warn("Serving a stale response for serviceUrl '{}' because the soffit failed", serviceUrl);
+                responseValue = cachedValue;
+            }
+        }
 
-            logger.debug("No applicable response in cache;  invoking serviceUrl '{}'", serviceUrl);
+        if (responseValue == null) {
+            // The failure has already been logged
+            return;
+        }
 
-            final HttpPost postMethod = new HttpPost(serviceUrl);
-            try (final CloseableHttpClient httpClient = httpClientBuilder.build()) {
+        if (sink != null && sink.getByteCount() != 0) {
+            // The response was streamed directly to the portlet
+            return;
+        }
 
-                // Provide a payload
-                final Object payload = buildPayload(req, res);
-                postMethod.setHeader(SoffitRendererController.PAYLOAD_CLASS_HEADER, payload.getClass().getName());
-                final String json = objectMapper.writeValueAsString(payload);
-                postMethod.setEntity(new StringEntity(json));
+        try {
+            writeResponse(responseValue, res.getPortletOutputStream());
+        } catch (IOException e) {
+            logger.error("Failed to write the response for serviceUrl '{}'", serviceUrl, e);
+        }
 
-                // Send the request
-                final HttpResponse httpResponse = httpClient.execute(postMethod);
-                final int statusCode = httpResponse.getStatusLine().getStatusCode();
-                logger.debug("HTTP response code for url '{}' was '{}'", serviceUrl, statusCode);
+    }
 
-                if (statusCode == HttpStatus.SC_OK) {
-                    responseValue = extractResponseAndCacheIfAppropriate(httpResponse, req, serviceUrl);
-                } else {
-                    logger.error("Failed to get content from remote service '{}';  HttpStatus={}", serviceUrl, statusCode);
-                    res.getWriter().write("FAILED!  statusCode="+statusCode);  // TODO:  Better message
-                }
+    /**
+     * Serves the markup of a deferred soffit to the browser.  The render that
+     * wrote the placeholder left its fetch running in the background;  if it's
+     * gone (e.g. the browser asked twice), a fresh response from the cache will
+     * do.  Payloads can only be built in the render phase, so the soffit is not
+     * invoked from here.
+     */
+    @ResourceMapping(DEFERRED_RESOURCE_ID)
+    public void serveDeferredContent(final ResourceRequest req, final ResourceResponse res) {
 
-                // Ensures that the entity content is fully consumed and the content stream, if exists, is closed.
-                EntityUtils.consume(httpResponse.getEntity());
+        final PortletPreferences prefs = req.getPreferences();
+        final String serviceUrl = prefs.getValue(SERVICE_URL_PREFERENCE, null);
+        if (serviceUrl == null) {
+            throw new IllegalStateException("Missing portlet prefernce value for " + SERVICE_URL_PREFERENCE);
+        }
 
-            } catch (IOException e) {
-                logger.error("Failed to invoke serviceUrl '{}'", serviceUrl, e);
-            }
+        final CacheKeys cacheKeys = createCacheKeys(req, serviceUrl);
+        final ResponseWrapper cachedValue = fetchContentFromCacheIfAvailable(cacheKeys, false);
+        final String token = req.getParameter(DEFERRED_TOKEN_PARAMETER);
+        final PendingFetch pendingFetch = token != null ? takePendingFetch(getDeferredFetchKey(token), cacheKeys) : null;
+        ResponseWrapper responseValue;
+        if (pendingFetch != null) {
+            logger.debug("Collecting the deferred response for serviceUrl '{}'", serviceUrl);
+            responseValue = awaitFetch(pendingFetch);
+        } else if (cachedValue != null && cachedValue.isFresh()) {
+            responseValue = cachedValue;
+        } else {
+            responseValue = fetchFailureFromCacheIfAvailable(cacheKeys);
+        }
+        if ((responseValue == null || responseValue.isFailure())
+                && cachedValue != null && cachedValue.isUsableIfError()) {
+            logger.warn("Serving a stale response for serviceUrl '{}' because the soffit failed", serviceUrl);
+            responseValue = cachedValue;
+        }
 
+        // The markup may be private
+        res.getCacheControl().setExpirationTime(0);
+        if (responseValue == null) {
+            logger.debug("No deferred response is available for serviceUrl '{}'", serviceUrl);
+            res.setProperty(ResourceResponse.HTTP_STATUS_CODE, Integer.toString(HttpStatus.SC_NOT_FOUND));
+            return;
         }
 
+        res.setContentType("text/html");
         try {
-            res.getPortletOutputStream().write(responseValue.getBytes());
+            writeResponse(responseValue, res.getPortletOutputStream());
         } catch (IOException e) {
-            logger.error("Failed to write the response for serviceUrl '{}'", serviceUrl, e);
+            logger.error("Failed to write the deferred response for serviceUrl '{}'", serviceUrl, e);
         }
 
     }
@@ -169,95 +625,1198 @@ public class SoffitConnectorController implements ApplicationContextAware {
      * Implementation
      */
 
-    private ResponseWrapper fetchContentFromCacheIfAvailable(final RenderRequest req, final String serviceUrl) {
+    /**
+     * Writes the placeholder for a deferred soffit, which fetches the markup
+     * from {@link #serveDeferredContent(ResourceRequest, ResourceResponse)}
+     * with the token that identifies its fetch.
+     */
+    private void writeDeferredPlaceholder(final RenderResponse res, final String serviceUrl, final String token) {
+        final ResourceURL resourceUrl = res.createResourceURL();
+        resourceUrl.setResourceID(DEFERRED_RESOURCE_ID);
+        resourceUrl.setParameter(DEFERRED_TOKEN_PARAMETER, token);
+        try {
+            final StringWriter url = new StringWriter();
+            resourceUrl.write(url, false);
+            res.getWriter().write(String.format(DEFERRED_PLACEHOLDER_FORMAT,
+                    res.getNamespace() + DEFERRED_RESOURCE_ID, StringEscapeUtils.escapeEcmaScript(url.toString())));
+        } catch (IOException e) {
+            logger.error("Failed to write the deferred placeholder for serviceUrl '{}'", serviceUrl, e);
+        }
+    }
+
+    /**
+     * Returns the cached response that applies to this request, if any.  The
+     * response may be stale, so callers must check.  A fresh response is
+     * preferred over a stale one.  Hits and misses are counted in the metrics
+     * if <code>recordMetrics</code> is true (once per render).
+     */
+    private ResponseWrapper fetchContentFromCacheIfAvailable(final CacheKeys cacheKeys, final boolean recordMetrics) {
 
         ResponseWrapper rslt = null;  // default
 
         final List<CacheTuple> cacheKeysToTry = new ArrayList<>();
         // Don't use private-scope caching for anonymous users
-        if (req.getRemoteUser() != null) {
-            cacheKeysToTry.add(
-                    // Private-scope cache key
-                    new CacheTuple(serviceUrl, req.getPortletMode().toString(),
-                            req.getWindowState().toString(), req.getRemoteUser())
-            );
-        }
-        cacheKeysToTry.add(
-                // Public-scope cache key
-                new CacheTuple(serviceUrl, req.getPortletMode().toString(),
-                        req.getWindowState().toString())
-        );
+        if (cacheKeys.getPrivateKey().getUsername() != null) {
+            cacheKeysToTry.add(cacheKeys.getPrivateKey());
+        }
+        cacheKeysToTry.add(cacheKeys.getPublicKey());
 
+        CacheTuple freshKey = null;
         for (CacheTuple key : cacheKeysToTry) {
             final Element cacheElement = this.responseCache.get(key);
             if (cacheElement != null) {
-                rslt = (ResponseWrapper) cacheElement.getObjectValue();
+                final ResponseWrapper response = (ResponseWrapper) cacheElement.getObjectValue();
+                if (response.isFresh()) {
+                    rslt = response;
+                    freshKey = key;
+                    break;
+                }
+                if (rslt == null) {
+                    rslt = response;
+                }
+            }
+        }
+
+        if (recordMetrics) {
+            final String serviceUrl = cacheKeys.getPublicKey().getServiceUrl();
+            if (freshKey != null) {
+                soffitMetrics.recordCacheHit(serviceUrl, freshKey == cacheKeys.getPublicKey());
+            } else {
+                soffitMetrics.recordCacheMiss(serviceUrl);
+            }
+        }
+
+        return rslt;
+
+    }
+
+    /**
+     * Returns the public-scope response cached for these keys if it has been
+     * served often and will soon expire, so that it may be refreshed before it
+     * does;  otherwise null.
+     */
+    /**
+     * The key under which {@link #fetchContentFromCacheIfAvailable} found a
+     * stale response:  the private key if it has an entry, since that one is
+     * tried first, and otherwise the public key.
+     */
+    private CacheTuple getStaleKey(final CacheKeys cacheKeys) {
+        final CacheTuple privateKey = cacheKeys.getPrivateKey();
+        return privateKey.getUsername() != null && responseCache.getQuiet(privateKey) != null
+                ? privateKey
+                : cacheKeys.getPublicKey();
+    }
+
+    private ResponseWrapper getPopularValueNearingExpiry(final CacheKeys cacheKeys) {
+
+        final Element element = responseCache.getQuiet(cacheKeys.getPublicKey());
+        if (element == null || element.getHitCount() < REFRESH_AHEAD_MIN_HITS) {
+            return null;
+        }
+
+        final ResponseWrapper rslt = (ResponseWrapper) element.getObjectValue();
+        final long freshLifetime = rslt.getFreshUntil() - element.getCreationTime();
+        final long freshRemaining = rslt.getFreshUntil() - System.currentTimeMillis();
+        return freshRemaining > 0 && freshRemaining < freshLifetime * REFRESH_AHEAD_FRACTION ? rslt : null;
+
+    }
+
+    /**
+     * Returns the failure recently remembered for these keys, if any.  Failures
+     * are remembered under the public-scope key, so they're shared by every
+     * user.
+     */
+    private ResponseWrapper fetchFailureFromCacheIfAvailable(final CacheKeys cacheKeys) {
+        final Element element = responseCache.get(cacheKeys.getFailureKey());
+        return element != null ? (ResponseWrapper) element.getObjectValue() : null;
+    }
+
+    /**
+     * Remembers a failure for a short while (per its status class), so that a
+     * broken soffit is invoked once per interval rather than once per render.
+     * Local failures are not the soffit's fault, so they're not remembered.
+     */
+    private void cacheFailureIfAppropriate(final FetchRequest fetchRequest, final ResponseWrapper response) {
+        if (response == null || !response.isFailure() || response.isLocal()) {
+            return;
+        }
+        final int timeToLive = fetchRequest.getFailureCacheSeconds().forStatusCode(response.getStatusCode());
+        if (timeToLive > 0) {
+            logger.debug("Remembering the failure (statusCode={}) of serviceUrl '{}' for {} seconds",
+                    response.getStatusCode(), fetchRequest.getServiceUrl(), timeToLive);
+            final Element element = new Element(fetchRequest.getCacheKeys().getFailureKey(), response);
+            element.setTimeToLive(timeToLive);
+            responseCache.put(element);
+        }
+    }
+
+    /**
+     * Fetches the soffits listed in the <code>warmUpServiceUrls</code>
+     * property with a guest payload, so that their responses (if public-scope)
+     * are cached before the first users arrive.  Waits at most the default
+     * timeout for all of them.
+     */
+    private void warmUp() {
+
+        final String value = applicationContext.getEnvironment().getProperty(WARM_UP_SERVICE_URLS_PROPERTY);
+        final String[] serviceUrls = StringUtils.split(StringUtils.defaultString(value), ", \t\r\n");
+        if (serviceUrls.length == 0) {
+            return;
+        }
+
+        logger.info("Warming up the soffit response cache for {} soffits", serviceUrls.length);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000L;
+        final List<Future<ResponseWrapper>> futures = new ArrayList<>();
+        for (String serviceUrl : serviceUrls) {
+            final FetchRequest fetchRequest = createWarmUpFetchRequest(serviceUrl, deadline);
+            try {
+                futures.add(fetchExecutor.submit(new Callable<ResponseWrapper>() {
+                    @Override
+                    public ResponseWrapper call() {
+                        return fetchContentFromService(fetchRequest);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Unable to warm up serviceUrl '{}'", serviceUrl);
+            }
+        }
+
+        int fetched = 0;
+        for (Future<ResponseWrapper> future : futures) {
+            try {
+                final ResponseWrapper rslt = future.get(Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS);
+                if (rslt != null && !rslt.isFailure()) {
+                    fetched++;
+                }
+            } catch (TimeoutException e) {
+                future.cancel(true);
+            } catch (ExecutionException e) {
+                logger.warn("Failed to warm up a soffit", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 break;
             }
         }
+        logger.info("Warm-up fetched {} of {} soffits successfully", fetched, serviceUrls.length);
+
+    }
+
+    /**
+     * Creates a request for the default (VIEW, NORMAL) rendering of the soffit
+     * for a guest user, independent of any portlet request.
+     */
+    private FetchRequest createWarmUpFetchRequest(final String serviceUrl, final long deadline) {
+
+        final String mode = PortletMode.VIEW.toString();
+        final String windowState = WindowState.NORMAL.toString();
+
+        final org.apereo.portlet.soffit.model.v1_0.Request request = new org.apereo.portlet.soffit.model.v1_0.Request()
+                .setWindowId(PortletApiSoffitLoader.WINDOW_ID_PREFIX + "warmup")
+                .setWindowState(windowState);
+        request.setAttribute(org.apereo.portlet.soffit.model.v1_0.Request.MODE, Collections.singletonList(mode));
+        final org.apereo.portlet.soffit.model.v1_0.Payload payload = new org.apereo.portlet.soffit.model.v1_0.Payload();
+        payload.setRequest(request);
+        payload.setUser(new org.apereo.portlet.soffit.model.v1_0.User());
+        payload.setContext(new org.apereo.portlet.soffit.model.v1_0.Context());
+        payload.setDefinition(new org.apereo.portlet.soffit.model.v1_0.Definition());
+
+        final CacheKeys cacheKeys = new CacheKeys(
+                new CacheTuple(serviceUrl, mode, windowState),
+                new CacheTuple(serviceUrl, mode, windowState, null),
+                CacheVary.NONE);
+        return new FetchRequest(serviceUrl, Collections.singletonList(serviceUrl), false, payload, cacheKeys, null,
+                TIMEOUT_SECONDS * 1000, TIMEOUT_SECONDS * 1000, deadline, FailureCacheSeconds.DEFAULT,
+                DEFAULT_MAX_RESPONSE_BYTES, null);
+
+    }
+
+    /**
+     * Begins invoking the remote soffit on a background thread, unless there's
+     * already a suitable response in the cache.  If the background pool is
+     * saturated, we let the markup phase fetch the content normally.
+     */
+    private void startFetchIfNecessary(final RenderRequest req, final RenderResponse res, final String serviceUrl) {
+
+        final String pendingFetchKey = getPendingFetchKey(req);
+        if (pendingFetchKey == null) {
+            // The markup phase couldn't tell this user's fetch from another's
+            return;
+        }
+
+        expireAbandonedFetches();
+
+        final CacheKeys cacheKeys = createCacheKeys(req, serviceUrl);
+        final ResponseWrapper cachedValue = fetchContentFromCacheIfAvailable(cacheKeys, false);
+        if (cachedValue != null && (cachedValue.isFresh() || cachedValue.isUsableWhileRevalidating())) {
+            // Nothing to do;  the markup phase will handle revalidation, if necessary
+            return;
+        }
+        if (fetchFailureFromCacheIfAvailable(cacheKeys) != null) {
+            // The markup phase will use the failure
+            return;
+        }
+
+        final PendingFetch pendingFetch = startFetch(req,
+                createFetchRequest(req, res, serviceUrl, cacheKeys, cachedValue, null));
+        if (pendingFetch != null) {
+            final PendingFetch previous = pendingFetches.put(pendingFetchKey, pendingFetch);
+            if (previous != null) {
+                // Superseded by a new request from the same user for the same window
+                previous.getFuture().cancel(true);
+            }
+        }
+
+    }
+
+    /**
+     * Begins the fetch on a background thread (or in a batch), or returns
+     * null if the background pool is saturated.
+     */
+    private PendingFetch startFetch(final RenderRequest req, final FetchRequest fetchRequest) {
+
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        try {
+            PendingFetch rslt = addToBatchIfPossible(req, fetchRequest);
+            if (rslt == null) {
+                final Future<ResponseWrapper> future = fetchExecutor.submit(new Callable<ResponseWrapper>() {
+                    @Override
+                    public ResponseWrapper call() {
+                        return fetchContentCoalesced(fetchRequest);
+                    }
+                });
+                rslt = new PendingFetch(fetchRequest, future, null);
+            }
+            logger.debug("Started a background fetch for serviceUrl '{}'", serviceUrl);
+            return rslt;
+        } catch (RejectedExecutionException e) {
+            logger.warn("Unable to start a background fetch for serviceUrl '{}';  "
+                    + "it will be fetched in the foreground", serviceUrl);
+            return null;
+        }
+
+    }
+
+    /**
+     * Adds the fetch to a batch, unless the portlet has opted out of batching
+     * or the {@link SoffitBatcher} declines it, in which case returns null.
+     */
+    private PendingFetch addToBatchIfPossible(final RenderRequest req, final FetchRequest fetchRequest) {
+        if (!Boolean.valueOf(req.getPreferences().getValue(BATCH_REQUESTS_PREFERENCE, "true"))) {
+            return null;
+        }
+        final PortletSession session = req.getPortletSession(false);
+        final SoffitBatcher.BatchedFetch batchedFetch =
+                soffitBatcher.addIfPossible(session != null ? session.getId() : "", fetchRequest);
+        return batchedFetch != null
+                ? new PendingFetch(fetchRequest, batchedFetch.getFuture(), batchedFetch.getBatch())
+                : null;
+    }
+
+    /**
+     * Refreshes a stale (cached) response on a background thread.  There will
+     * be at most one refresh in progress for each cache entry, identified by
+     * <code>cacheTuple</code>.  (Not by the response itself:  a response read
+     * from the disk tier is a new copy each time.)
+     */
+    private void revalidateInBackground(final RenderRequest req, final RenderResponse res, final String serviceUrl,
+            final CacheKeys cacheKeys, final CacheTuple cacheTuple, final ResponseWrapper staleValue) {
+
+        // Claim the revalidation before going to the trouble of building a payload
+        if (!revalidationsInProgress.add(cacheTuple)) {
+            // Someone else is already on it
+            return;
+        }
+
+        try {
+            final FetchRequest fetchRequest = createFetchRequest(req, res, serviceUrl, cacheKeys, staleValue, null);
+            fetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetchContentCoalesced(fetchRequest);
+                    } finally {
+                        revalidationsInProgress.remove(cacheTuple);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Unable to revalidate the response for serviceUrl '{}' in the background", serviceUrl);
+            revalidationsInProgress.remove(cacheTuple);
+        } catch (RuntimeException e) {
+            // Failed to build the payload
+            revalidationsInProgress.remove(cacheTuple);
+            throw e;
+        }
+
+    }
+
+    private ResponseWrapper awaitFetch(final PendingFetch pendingFetch) {
+
+        final String serviceUrl = pendingFetch.getFetchRequest().getServiceUrl();
+        if (pendingFetch.getBatch() != null) {
+            // No sense waiting for more
+            pendingFetch.getBatch().flush();
+        }
+        ResponseWrapper rslt = null;
+        try {
+            rslt = pendingFetch.getFuture().get(pendingFetch.getFetchRequest().getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.error("Timed out waiting for serviceUrl '{}'", serviceUrl);
+            pendingFetch.getFuture().cancel(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Failed to invoke serviceUrl '{}'", serviceUrl, e.getCause());
+        }
+        return rslt;
+
+    }
+
+    /**
+     * Waits up to <code>timeoutMillis</code> for the background fetch to
+     * finish, without collecting it.
+     *
+     * @return False if the fetch is still in progress
+     */
+    private boolean awaitFetch(final PendingFetch pendingFetch, final long timeoutMillis) {
+
+        if (pendingFetch.getBatch() != null) {
+            // No sense waiting for more
+            pendingFetch.getBatch().flush();
+        }
+        try {
+            pendingFetch.getFuture().get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Reported when the fetch is collected
+        }
+        return true;
+
+    }
+
+    /**
+     * Background fetches are normally collected by the markup phase that
+     * follows (or, for deferred soffits, by the browser).  This method cleans
+     * up after any that never were (e.g. the user navigated away).
+     */
+    private void expireAbandonedFetches() {
+        final long cutoff = System.currentTimeMillis() - (TIMEOUT_SECONDS * 2 * 1000L);
+        for (Iterator<PendingFetch> it = pendingFetches.values().iterator(); it.hasNext();) {
+            final PendingFetch pendingFetch = it.next();
+            if (pendingFetch.getTimestamp() < cutoff) {
+                pendingFetch.getFuture().cancel(true);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Identifies a background fetch started in the headers phase by user
+     * (session) and portlet window.  We don't create sessions for this
+     * purpose, and users without one may share window IDs, so the result is
+     * null for them;  their soffits are fetched in the markup phase.
+     */
+    private String getPendingFetchKey(final PortletRequest req) {
+        final PortletSession session = req.getPortletSession(false);
+        return session != null ? session.getId() + ":" + req.getWindowID() : null;
+    }
+
+    /**
+     * Identifies the background fetch of a deferred render by the token in its
+     * resource URL.
+     */
+    private String getDeferredFetchKey(final String token) {
+        return DEFERRED_RESOURCE_ID + ":" + token;
+    }
+
+    /**
+     * Removes and returns the background fetch with this key, if any.  A
+     * fetch for a different request (i.e. other cache keys) is left in place;
+     * it is superseded or expires.
+     */
+    private PendingFetch takePendingFetch(final String key, final CacheKeys cacheKeys) {
+        final PendingFetch rslt = pendingFetches.remove(key);
+        if (rslt != null && !rslt.getFetchRequest().getCacheKeys().getPublicKey().equals(cacheKeys.getPublicKey())) {
+            pendingFetches.putIfAbsent(key, rslt);
+            return null;
+        }
+        return rslt;
+    }
+
+    /**
+     * Cache keys incorporate a hash of the request values the soffit has said
+     * its output depends on (if any).
+     */
+    private CacheKeys createCacheKeys(final PortletRequest req, final String serviceUrl) {
+        final String mode = req.getPortletMode().toString();
+        final String windowState = req.getWindowState().toString();
+        CacheVary vary = declaredCacheVaries.get(serviceUrl);
+        if (vary == null) {
+            vary = CacheVary.NONE;
+        }
+        final String variant = vary.getVariant(req);
+        return new CacheKeys(
+                new CacheTuple(serviceUrl, mode, windowState).withVariant(variant),
+                new CacheTuple(serviceUrl, mode, windowState, req.getRemoteUser()).withVariant(variant),
+                vary);
+    }
+
+    /**
+     * Gathers everything needed to invoke the remote soffit, including the
+     * deadline by which it must respond, from the request.
+     */
+    private FetchRequest createFetchRequest(final RenderRequest req, final RenderResponse res, final String serviceUrl,
+            final CacheKeys cacheKeys, final ResponseWrapper cachedValue, final OutputStream sink) {
+        final PortletPreferences prefs = req.getPreferences();
+        final int connectTimeout = getIntPreference(prefs, CONNECT_TIMEOUT_PREFERENCE, TIMEOUT_SECONDS * 1000);
+        final int readTimeout = getIntPreference(prefs, READ_TIMEOUT_PREFERENCE, TIMEOUT_SECONDS * 1000);
+        final long deadline = System.currentTimeMillis() + readTimeout;
+        final List<String> replicaUrls = Arrays.asList(prefs.getValues(SERVICE_URL_PREFERENCE, new String[] { serviceUrl }));
+        final boolean hedged = Boolean.valueOf(prefs.getValue(HEDGE_REQUESTS_PREFERENCE, "false"));
+        final FailureCacheSeconds failureCacheSeconds = new FailureCacheSeconds(
+                getIntPreference(prefs, TIMEOUT_CACHE_SECONDS_PREFERENCE, FAILURE_CACHE_SECONDS),
+                getIntPreference(prefs, SERVER_ERROR_CACHE_SECONDS_PREFERENCE, FAILURE_CACHE_SECONDS),
+                getIntPreference(prefs, CLIENT_ERROR_CACHE_SECONDS_PREFERENCE, 0));
+        final int maxResponseBytes = getIntPreference(prefs, MAX_RESPONSE_BYTES_PREFERENCE, DEFAULT_MAX_RESPONSE_BYTES);
+        return new FetchRequest(serviceUrl, replicaUrls, hedged, buildPayload(req, res, serviceUrl), cacheKeys, cachedValue,
+                connectTimeout, readTimeout, deadline, failureCacheSeconds, maxResponseBytes, sink);
+    }
+
+    private int getIntPreference(final PortletPreferences prefs, final String name, final int defaultValue) {
+        final String value = prefs.getValue(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring invalid value '{}' for portlet preference {}", value, name);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Invokes the remote soffit, unless an equivalent request for content
+     * we've seen to be public-scoped is already in flight.  In that case we
+     * wait for it and share its response (via the cache).
+     */
+    private ResponseWrapper fetchContentCoalesced(final FetchRequest fetchRequest) {
+
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final Callable<ResponseWrapper> fetch = new Callable<ResponseWrapper>() {
+            @Override
+            public ResponseWrapper call() {
+                final ResponseWrapper rslt = fetchContentFromService(fetchRequest);
+                cacheFailureIfAppropriate(fetchRequest, rslt);
+                return rslt;
+            }
+        };
+        final Callable<ResponseWrapper> afterWaiting = new Callable<ResponseWrapper>() {
+            @Override
+            public ResponseWrapper call() {
+                final ResponseWrapper rslt = fetchContentFromCacheIfAvailable(fetchRequest.getCacheKeys(), false);
+                if (rslt != null && rslt.isFresh()) {
+                    logger.debug("Shared the response of a coalesced request for serviceUrl '{}'", serviceUrl);
+                    return rslt;
+                }
+                final ResponseWrapper cachedFailure = fetchFailureFromCacheIfAvailable(fetchRequest.getCacheKeys());
+                if (cachedFailure != null) {
+                    logger.debug("Shared the failure of a coalesced request for serviceUrl '{}'", serviceUrl);
+                    return cachedFailure;
+                }
+                // The leader's response wasn't cacheable after all
+                final ResponseWrapper fetched = fetchContentFromService(fetchRequest);
+                cacheFailureIfAppropriate(fetchRequest, fetched);
+                return fetched;
+            }
+        };
+
+        try {
+            return responseCoalescer.execute(fetchRequest.getCacheKeys().getPublicKey(), fetch, afterWaiting,
+                    fetchRequest.getRemainingMillis());
+        } catch (Exception e) {
+            logger.error("Failed to invoke serviceUrl '{}'", serviceUrl, e);
+            return null;
+        }
+
+    }
+
+    /**
+     * Invokes the remote soffit.  This method does not depend on the
+     * {@link RenderRequest} or {@link RenderResponse} and may therefore be
+     * called on a background thread.  If the soffit has several replicas, the
+     * {@link ReplicaSelector} chooses one;  if hedging is enabled (and the
+     * response isn't being streamed), a second replica is tried when the
+     * first is slower than usual.
+     *
+     * @return The response, or null if the soffit could not be invoked
+     * successfully
+     */
+    private ResponseWrapper fetchContentFromService(final FetchRequest fetchRequest) {
+
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final long remainingMillis = fetchRequest.getRemainingMillis();
+        if (remainingMillis <= 0) {
+            logger.warn("The deadline for serviceUrl '{}' passed before the request could be sent", serviceUrl);
+            return ResponseWrapper.forLocalFailure("Deadline passed before the request was sent",
+                    HttpStatus.SC_GATEWAY_TIMEOUT);
+        }
+
+        final List<String> replicaUrls = fetchRequest.getReplicaUrls();
+        final String replicaUrl = replicaSelector.select(replicaUrls, null);
+        if (fetchRequest.isHedged() && fetchRequest.getSink() == null && replicaUrls.size() > 1) {
+            final long hedgeDelay = replicaSelector.getHedgeDelay(serviceUrl);
+            if (hedgeDelay >= 0 && hedgeDelay < remainingMillis) {
+                return fetchContentHedged(fetchRequest, replicaUrl, hedgeDelay);
+            }
+        }
+
+        return fetchContentFromReplica(fetchRequest, replicaUrl, new HttpPost(replicaUrl));
+
+    }
+
+    /**
+     * Sends the request to the selected replica and, if it hasn't responded
+     * after <code>hedgeDelay</code> milliseconds, to another replica as well.
+     * The first successful response wins;  the other request is aborted.
+     * The attempts run on a pool of their own that never queues them, so a
+     * fetch thread waiting here can't be starved by its own attempts.
+     */
+    private ResponseWrapper fetchContentHedged(final FetchRequest fetchRequest, final String primaryUrl,
+            final long hedgeDelay) {
+
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final CompletionService<ResponseWrapper> attempts = new ExecutorCompletionService<>(attemptExecutor);
+        final Map<Future<ResponseWrapper>,HttpPost> postMethods = new HashMap<>();
+
+        try {
+            final HttpPost primaryPost = new HttpPost(primaryUrl);
+            postMethods.put(submitAttempt(attempts, fetchRequest, primaryUrl, primaryPost), primaryPost);
+        } catch (RejectedExecutionException e) {
+            // The pool is saturated;  this is no time to be sending extra requests
+            return fetchContentFromReplica(fetchRequest, primaryUrl, new HttpPost(primaryUrl));
+        }
+
+        ResponseWrapper rslt = null;
+        Future<ResponseWrapper> hedge = null;
+        Future<ResponseWrapper> winner = null;
+        try {
+            Future<ResponseWrapper> done = attempts.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                final String hedgeUrl = replicaSelector.select(fetchRequest.getReplicaUrls(), primaryUrl);
+                if (hedgeUrl != null) {
+                    try {
+                        final HttpPost hedgePost = new HttpPost(hedgeUrl);
+                        hedge = submitAttempt(attempts, fetchRequest, hedgeUrl, hedgePost);
+                        postMethods.put(hedge, hedgePost);
+                        logger.debug("Sent a hedged request to '{}' for serviceUrl '{}' after {}ms",
+                                hedgeUrl, serviceUrl, hedgeDelay);
+                    } catch (RejectedExecutionException e) {
+                        logger.debug("Unable to send a hedged request for serviceUrl '{}'", serviceUrl);
+                    }
+                }
+            }
+            for (int pending = postMethods.size(); pending > 0; pending--) {
+                if (done == null) {
+                    done = attempts.poll(Math.max(fetchRequest.getRemainingMillis(), 0L), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        logger.error("Timed out waiting for serviceUrl '{}'", serviceUrl);
+                        break;
+                    }
+                }
+                ResponseWrapper response = null;
+                try {
+                    response = done.get();
+                } catch (ExecutionException e) {
+                    // The other attempt (if any) may yet succeed
+                    logger.error("Failed to invoke serviceUrl '{}'", serviceUrl, e.getCause());
+                }
+                if (response != null && !response.isFailure()) {
+                    rslt = response;
+                    winner = done;
+                    break;
+                }
+                if (response != null) {
+                    // Better than nothing, if the other request fails too
+                    rslt = response;
+                }
+                done = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Map.Entry<Future<ResponseWrapper>,HttpPost> y : postMethods.entrySet()) {
+                if (!y.getKey().isDone()) {
+                    y.getValue().abort();
+                }
+            }
+        }
+
+        if (hedge != null) {
+            replicaSelector.recordHedgedRequest(winner == hedge);
+        }
+
+        return rslt;
+
+    }
+
+    private Future<ResponseWrapper> submitAttempt(final CompletionService<ResponseWrapper> attempts,
+            final FetchRequest fetchRequest, final String replicaUrl, final HttpPost postMethod) {
+        return attempts.submit(new Callable<ResponseWrapper>() {
+            @Override
+            public ResponseWrapper call() {
+                return fetchContentFromReplica(fetchRequest, replicaUrl, postMethod);
+            }
+        });
+    }
+
+    /**
+     * Invokes one replica of the remote soffit.  If there's an (expired)
+     * cached response with an <code>ETag</code>, the request is made
+     * conditional.  If a <code>sink</code> is specified, a successful response
+     * is streamed to it as it arrives (instead of being buffered in memory).
+     * The time remaining before the deadline is sent to the soffit, so it
+     * won't bother with work we won't wait for.
+     */
+    private ResponseWrapper fetchContentFromReplica(final FetchRequest fetchRequest, final String replicaUrl,
+            final HttpPost postMethod) {
+
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final Object payload = fetchRequest.getPayload();
+        final CacheKeys cacheKeys = fetchRequest.getCacheKeys();
+        final ResponseWrapper cachedValue = fetchRequest.getCachedValue();
+        final OutputStream sink = fetchRequest.getSink();
+
+        final long remainingMillis = fetchRequest.getRemainingMillis();
+        if (remainingMillis <= 0) {
+            logger.warn("The deadline for serviceUrl '{}' passed before the request could be sent", serviceUrl);
+            return ResponseWrapper.forLocalFailure("Deadline passed before the request was sent",
+                    HttpStatus.SC_GATEWAY_TIMEOUT);
+        }
+
+        if (!serviceCircuitBreaker.allowRequest(replicaUrl)) {
+            logger.debug("The circuit for serviceUrl '{}' is open;  failing fast", replicaUrl);
+            return ResponseWrapper.forLocalFailure("Circuit open", HttpStatus.SC_SERVICE_UNAVAILABLE);
+        }
+
+        ResponseWrapper rslt = null;
+        boolean healthy = false;  // Not a server error (for the circuit)
+        boolean answered = false;  // Not an error of any kind (for the ReplicaSelector)
+        boolean aborted = false;
+
+        replicaSelector.begin(replicaUrl);
+        final long startTime = System.currentTimeMillis();
+        postMethod.setConfig(RequestConfig.custom()
+                .setConnectTimeout(fetchRequest.getConnectTimeout())
+                .setConnectionRequestTimeout(fetchRequest.getConnectTimeout())
+                .setSocketTimeout((int) Math.min(fetchRequest.getReadTimeout(), remainingMillis))
+                .build());
+        try {
+
+            // Provide a payload
+            postMethod.setHeader(SoffitRendererController.PAYLOAD_CLASS_HEADER, payload.getClass().getName());
+            postMethod.setHeader(SoffitRendererController.RENDER_BUDGET_HEADER, Long.toString(remainingMillis));
+            postMethod.setEntity(createPayloadEntity(serviceUrl, replicaUrl, payload));
+
+            // Revalidate what we have, if possible
+            if (cachedValue != null && cachedValue.getEtag() != null) {
+                postMethod.setHeader(HttpHeaders.IF_NONE_MATCH, cachedValue.getEtag());
+            }
+
+            // Send the request
+            final HttpResponse httpResponse = httpConnectionPool.getHttpClient().execute(postMethod);
+            final int statusCode = httpResponse.getStatusLine().getStatusCode();
+            logger.debug("HTTP response code for url '{}' was '{}'", replicaUrl, statusCode);
+            final boolean budgetExhausted =
+                    httpResponse.getFirstHeader(SoffitRendererController.BUDGET_EXHAUSTED_HEADER) != null;
+            if (!budgetExhausted) {
+                soffitMetrics.recordRemoteCall(serviceUrl, System.currentTimeMillis() - startTime, statusCode);
+            }
+            healthy = statusCode < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+            answered = statusCode < HttpStatus.SC_BAD_REQUEST;
+
+            learnPayloadFormats(httpResponse, replicaUrl, statusCode);
+            learnSoffitDeclarations(httpResponse, serviceUrl, statusCode);
+
+            soffitBatcher.learnBatchUrl(httpResponse, serviceUrl, replicaUrl, statusCode);
+
+            if (statusCode == HttpStatus.SC_OK) {
+                rslt = sink != null
+                        ? streamResponseAndCacheIfAppropriate(httpResponse, sink, fetchRequest)
+                        : extractResponseAndCacheIfAppropriate(httpResponse, fetchRequest);
+            } else if (statusCode == HttpStatus.SC_NOT_MODIFIED && cachedValue != null) {
+                logger.debug("Cached response for serviceUrl '{}' is still valid", serviceUrl);
+                rslt = cacheResponseIfAppropriate(httpResponse, cachedValue.getBytes(), cachedValue.getEncoding(),
+                        cachedValue.getEtag(), cacheKeys, serviceUrl);
+            } else if (budgetExhausted) {
+                // Our deadline, not the soffit's failure
+                logger.warn("Remote service '{}' rejected the request for serviceUrl '{}' because its render budget ran out",
+                        replicaUrl, serviceUrl);
+                rslt = ResponseWrapper.forLocalFailure("Render budget exhausted", statusCode);
+                aborted = true;
+            } else {
+                logger.error("Failed to get content from remote service '{}';  HttpStatus={}", replicaUrl, statusCode);
+                rslt = ResponseWrapper.forFailure("Remote service returned HttpStatus=" + statusCode, statusCode);
+            }
+
+            // Ensures that the entity content is fully consumed and the content stream, if exists, is closed.
+            EntityUtils.consume(httpResponse.getEntity());
+
+        } catch (ResponseLimitException e) {
+            logger.error("Rejected the response from '{}' for serviceUrl '{}':  {}", replicaUrl, serviceUrl, e.getMessage());
+            // Don't read (or wait for) the rest of it
+            postMethod.abort();
+            if (e.getStatusCode() == HttpStatus.SC_INSUFFICIENT_STORAGE) {
+                // Running out of memory on this node is not the soffit's fault
+                rslt = ResponseWrapper.forLocalFailure("Insufficient memory to buffer the response", e.getStatusCode());
+                aborted = true;
+            } else {
+                soffitMetrics.recordError(serviceUrl);
+                rslt = ResponseWrapper.forFailure("Response too large", e.getStatusCode());
+            }
+            healthy = false;
+            answered = false;
+        } catch (IOException e) {
+            if (postMethod.isAborted()) {
+                // We lost a race with a hedged request
+                logger.debug("Abandoned the request to '{}' for serviceUrl '{}'", replicaUrl, serviceUrl);
+                aborted = true;
+            } else {
+                logger.error("Failed to invoke serviceUrl '{}'", replicaUrl, e);
+                if (e instanceof ConnectionPoolTimeoutException) {
+                    // Waited for a connection on this node;  the soffit wasn't contacted
+                    rslt = ResponseWrapper.forLocalFailure("Timed out waiting for a pooled connection",
+                            HttpStatus.SC_SERVICE_UNAVAILABLE);
+                    aborted = true;
+                } else if (e instanceof InterruptedIOException) {
+                    // Connect and socket timeouts
+                    soffitMetrics.recordTimeout(serviceUrl);
+                    rslt = ResponseWrapper.forFailure("Timed out", HttpStatus.SC_GATEWAY_TIMEOUT);
+                } else {
+                    soffitMetrics.recordError(serviceUrl);
+                    rslt = ResponseWrapper.forFailure("Service unavailable", HttpStatus.SC_SERVICE_UNAVAILABLE);
+                }
+            }
+            healthy = false;
+            answered = false;
+        } finally {
+            // Returns the connection to the pool (or discards it, if the response wasn't consumed)
+            postMethod.releaseConnection();
+            final long latencyMillis = System.currentTimeMillis() - startTime;
+            if (aborted) {
+                replicaSelector.cancel(replicaUrl);
+            } else if (answered) {
+                replicaSelector.end(serviceUrl, replicaUrl, latencyMillis);
+            } else {
+                replicaSelector.fail(replicaUrl, Math.max(latencyMillis, fetchRequest.getReadTimeout()));
+            }
+            // Includes timeouts
+            if (aborted) {
+                serviceCircuitBreaker.recordCancelled(replicaUrl);
+            } else if (healthy) {
+                serviceCircuitBreaker.recordSuccess(replicaUrl);
+            } else {
+                serviceCircuitBreaker.recordFailure(replicaUrl);
+            }
+        }
 
         return rslt;
 
     }
 
-    private ResponseWrapper extractResponseAndCacheIfAppropriate(final HttpResponse httpResponse,
-            final RenderRequest req, final String serviceUrl) {
+    /**
+     * Learns, from a response, which payload encodings the soffit at
+     * <code>replicaUrl</code> accepts:  gzip compression and Smile.
+     */
+    private void learnPayloadFormats(final HttpResponse httpResponse, final String replicaUrl, final int statusCode) {
+
+        // Does the soffit accept compressed payloads?
+        final Header acceptEncodingHeader = httpResponse.getFirstHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncodingHeader != null && StringUtils.containsIgnoreCase(
+                acceptEncodingHeader.getValue(), SoffitRendererController.GZIP_ENCODING)) {
+            gzipPayloadServiceUrls.add(replicaUrl);
+        } else if (statusCode == HttpStatus.SC_OK) {
+            gzipPayloadServiceUrls.remove(replicaUrl);
+        }
+
+        // Does the soffit accept binary payloads?
+        final Header payloadFormatsHeader = httpResponse.getFirstHeader(SoffitRendererController.PAYLOAD_FORMATS_HEADER);
+        if (payloadFormatsHeader != null && StringUtils.containsIgnoreCase(
+                payloadFormatsHeader.getValue(), SoffitRendererController.SMILE_CONTENT_TYPE)) {
+            smilePayloadServiceUrls.add(replicaUrl);
+        } else if (statusCode == HttpStatus.SC_OK) {
+            smilePayloadServiceUrls.remove(replicaUrl);
+        }
+
+    }
+
+    /**
+     * Learns, from a response, what the soffit has declared about the payload
+     * it needs and the parts of the request its output depends on.
+     */
+    private void learnSoffitDeclarations(final HttpResponse httpResponse, final String serviceUrl, final int statusCode) {
+
+        // Which parts of the payload does the soffit need?
+        final Header payloadFieldsHeader = httpResponse.getFirstHeader(SoffitRendererController.PAYLOAD_FIELDS_HEADER);
+        if (payloadFieldsHeader != null) {
+            declaredPayloadFields.put(serviceUrl, PayloadFields.parse(payloadFieldsHeader.getValue()));
+        } else if (statusCode == HttpStatus.SC_OK) {
+            declaredPayloadFields.remove(serviceUrl);
+        }
+
+        // Which parts of the request does the output depend on?
+        final Header varyHeader = httpResponse.getFirstHeader(SoffitRendererController.VARY_HEADER);
+        if (varyHeader != null) {
+            declaredCacheVaries.put(serviceUrl, CacheVary.parse(varyHeader.getValue()));
+        } else if (statusCode == HttpStatus.SC_OK) {
+            declaredCacheVaries.remove(serviceUrl);
+        }
+
+    }
+
+    /**
+     * Provides an entity that serializes the payload directly into the request
+     * body.  Payloads are sent as Smile if the soffit has told us it accepts
+     * them that way, and as UTF-8 JSON otherwise.  They are compressed if the
+     * soffit has told us it accepts them that way and the last one we sent it
+     * was large enough.  (The response is compressed, or not, through the
+     * usual Accept-Encoding negotiation, which HttpClient handles
+     * transparently.)
+     */
+    private HttpEntity createPayloadEntity(final String serviceUrl, final String replicaUrl, final Object payload) {
+        final Long lastPayloadSize = payloadSizes.get(replicaUrl);
+        final boolean gzip = gzipPayloadServiceUrls.contains(replicaUrl)
+                && lastPayloadSize != null && lastPayloadSize >= MIN_COMPRESSIBLE_PAYLOAD_BYTES;
+        return smilePayloadServiceUrls.contains(replicaUrl)
+                ? new PayloadEntity(serviceUrl, replicaUrl,
+                        getPayloadWriter(smileObjectMapper, smilePayloadWriters, payload.getClass()),
+                        SoffitRendererController.SMILE_CONTENT_TYPE, payload, gzip)
+                : new PayloadEntity(serviceUrl, replicaUrl,
+                        getPayloadWriter(objectMapper, payloadWriters, payload.getClass()),
+                        ContentType.APPLICATION_JSON.toString(), payload, gzip);
+    }
+
+    /**
+     * {@link ObjectWriter} instances are immutable and hold the serializer for
+     * their root type, so we reuse one per payload class (and format).
+     */
+    private ObjectWriter getPayloadWriter(final ObjectMapper mapper, final ConcurrentMap<Class<?>,ObjectWriter> writers,
+            final Class<?> payloadClass) {
+        ObjectWriter rslt = writers.get(payloadClass);
+        if (rslt == null) {
+            rslt = mapper.writerFor(payloadClass).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            writers.put(payloadClass, rslt);
+        }
+        return rslt;
+    }
+
+    private ResponseWrapper extractResponseAndCacheIfAppropriate(final HttpResponse httpResponse,
+            final FetchRequest fetchRequest) throws IOException {
+
+        final CacheKeys cacheKeys = fetchRequest.getCacheKeys();
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final byte[] bytes = readResponse(httpResponse.getEntity(), fetchRequest.getMaxResponseBytes(),
+                fetchRequest.getRemainingMillis());
+        soffitMetrics.recordResponseSize(serviceUrl, bytes.length);
+
+        final Header etagHeader = httpResponse.getFirstHeader(HttpHeaders.ETAG);
+        final String etag = etagHeader != null ? etagHeader.getValue() : null;
+
+        return cacheResponseIfAppropriate(httpResponse, bytes, null, etag, cacheKeys, serviceUrl);
+
+    }
+
+    /**
+     * Reads the response into memory, provided it's no larger than
+     * <code>maxResponseBytes</code> and memory is available in the
+     * {@link ResponseMemoryBudget} within <code>remainingMillis</code>.  The
+     * memory is reserved while the response is read and released once it's
+     * complete.
+     */
+    private byte[] readResponse(final HttpEntity entity, final long maxResponseBytes, final long remainingMillis)
+            throws IOException {
+
+        final long deadline = System.currentTimeMillis() + remainingMillis;
+        if (entity.getContentLength() > maxResponseBytes) {
+            throw new ResponseLimitException("Response too large (Content-Length=" + entity.getContentLength() + ")",
+                    HttpStatus.SC_BAD_GATEWAY);
+        }
+
+        final byte[] buffer = copyBuffer.get();
+        final ByteArrayOutputStream rslt = new ByteArrayOutputStream(buffer.length);
+        long reserved = 0L;
+        try {
+            /*
+             * The content is closed only if it's read completely;  closing it
+             * early would read (and discard) the rest of the response.
+             * Otherwise the connection is aborted when it's released.
+             */
+            final InputStream content = entity.getContent();
+            int count;
+            while ((count = content.read(buffer)) != -1) {
+                final long needed = (long) rslt.size() + count;
+                if (needed > maxResponseBytes) {
+                    throw new ResponseLimitException("Response too large (more than " + maxResponseBytes + " bytes)",
+                            HttpStatus.SC_BAD_GATEWAY);
+                }
+                if (needed > reserved) {
+                    final long increment = Math.max(BUFFER_RESERVATION_BYTES, needed - reserved);
+                    if (!responseMemoryBudget.reserve(increment, Math.max(deadline - System.currentTimeMillis(), 0L))) {
+                        throw new ResponseLimitException("Insufficient memory", HttpStatus.SC_INSUFFICIENT_STORAGE);
+                    }
+                    reserved += increment;
+                }
+                rslt.write(buffer, 0, count);
+            }
+            content.close();
+            return rslt.toByteArray();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        } finally {
+            responseMemoryBudget.release(reserved);
+        }
+
+    }
+
+    /**
+     * Copies the response to the sink through a small, reusable buffer.  The
+     * content is also retained (up to a limit) if the response is one we will
+     * cache;  otherwise it's never held in memory as a whole.  The retained
+     * copy is reserved against the {@link ResponseMemoryBudget} as it grows,
+     * but streaming never waits for memory:  if the reservation fails, the
+     * copy is dropped and the response isn't cached.  Copying stops if the
+     * response exceeds the soffit's <code>maxResponseBytes</code>.
+     */
+    private ResponseWrapper streamResponseAndCacheIfAppropriate(final HttpResponse httpResponse,
+            final OutputStream sink, final FetchRequest fetchRequest) throws IOException {
+
+        final CacheKeys cacheKeys = fetchRequest.getCacheKeys();
+        final String serviceUrl = fetchRequest.getServiceUrl();
+        final int maxResponseBytes = fetchRequest.getMaxResponseBytes();
+        final HttpEntity entity = httpResponse.getEntity();
+        if (entity.getContentLength() > maxResponseBytes) {
+            // Nothing has been written yet, so the failure content can take its place
+            throw new ResponseLimitException("Response too large (Content-Length=" + entity.getContentLength() + ")",
+                    HttpStatus.SC_BAD_GATEWAY);
+        }
+
+        final Header etagHeader = httpResponse.getFirstHeader(HttpHeaders.ETAG);
+        final String etag = etagHeader != null ? etagHeader.getValue() : null;
+        final Header cacheControlHeader = httpResponse.getFirstHeader(SoffitRendererController.CACHE_CONTROL_HEADER);
+        final CacheControl cacheControl = CacheControl.parse(cacheControlHeader != null ? cacheControlHeader.getValue() : null);
+        final boolean retain = cacheControl.isCacheable() || (etag != null && !cacheControl.isNoStore());
+
+        final byte[] buffer = copyBuffer.get();
+        ByteArrayOutputStream retained = retain ? new ByteArrayOutputStream(buffer.length) : null;
+        long reserved = 0L;
+        long total = 0L;
+        try {
+            // Closed only if it's read completely (see readResponse)
+            final InputStream content = entity.getContent();
+            int count;
+            while ((count = content.read(buffer)) != -1) {
+                if (total + count > maxResponseBytes) {
+                    // What has been written so far stays written
+                    throw new ResponseLimitException("Response too large (more than " + maxResponseBytes + " bytes)",
+                            HttpStatus.SC_BAD_GATEWAY);
+                }
+                sink.write(buffer, 0, count);
+                total += count;
+                if (retained != null) {
+                    final long needed = (long) retained.size() + count;
+                    if (needed > MAX_CACHEABLE_RESPONSE_BYTES) {
+                        logger.warn("Response for serviceUrl '{}' exceeds {} bytes and will not be cached",
+                                serviceUrl, MAX_CACHEABLE_RESPONSE_BYTES);
+                        retained = null;
+                    } else if (needed > reserved) {
+                        final long increment = Math.max(BUFFER_RESERVATION_BYTES, needed - reserved);
+                        if (reserveWithoutWaiting(increment)) {
+                            reserved += increment;
+                        } else {
+                            logger.warn("Insufficient memory to retain the response for serviceUrl '{}';  "
+                                    + "it will not be cached", serviceUrl);
+                            retained = null;
+                        }
+                    }
+                    if (retained != null) {
+                        retained.write(buffer, 0, count);
+                    } else {
+                        // Give the memory back now, rather than after the rest is streamed
+                        responseMemoryBudget.release(reserved);
+                        reserved = 0L;
+                    }
+                }
+            }
+            content.close();
+            soffitMetrics.recordResponseSize(serviceUrl, total);
+
+            return retained != null
+                    ? cacheResponseIfAppropriate(httpResponse, retained.toByteArray(), null, etag, cacheKeys, serviceUrl)
+                    : new ResponseWrapper(ArrayUtils.EMPTY_BYTE_ARRAY);  // Already written to the sink
+        } finally {
+            responseMemoryBudget.release(reserved);
+        }
+
+    }
+
+    /**
+     * Reserves memory for a copy of a streamed response, if it's available
+     * right away.
+     */
+    private boolean reserveWithoutWaiting(final long bytes) {
+        try {
+            return responseMemoryBudget.reserve(bytes, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Caches the response if indicated by the remote service.  Responses that
+     * may not be reused without revalidation (<code>no-cache</code>) are still
+     * stored if they carry an <code>ETag</code>, so that the next request can
+     * be conditional.  Cached content is compressed if it's large enough to
+     * be worth the trouble.
+     */
+    private ResponseWrapper cacheResponseIfAppropriate(final HttpResponse httpResponse, final byte[] bytes,
+            final String encoding, final String etag, final CacheKeys cacheKeys, final String serviceUrl) {
+
+        final Header cacheControlHeader = httpResponse.getFirstHeader(SoffitRendererController.CACHE_CONTROL_HEADER);
+        final String cacheControlValue = cacheControlHeader != null ? cacheControlHeader.getValue() : null;
+        logger.debug("Soffit with serviceUrl='{}' specified cache-control header value='{}'",
+                                                            serviceUrl, cacheControlValue);
+        final CacheControl cacheControl = CacheControl.parse(cacheControlValue);
+
+        // The keys are only valid if they were calculated with the soffit's current X-Soffit-Vary
+        final Header varyHeader = httpResponse.getFirstHeader(SoffitRendererController.VARY_HEADER);
+        final CacheVary vary = varyHeader != null ? CacheVary.parse(varyHeader.getValue()) : CacheVary.NONE;
+        final boolean keysApply = vary.equals(cacheKeys.getVary());
+        if (!keysApply) {
+            logger.debug("Not caching the response for serviceUrl '{}' because its {} changed to {}",
+                    serviceUrl, cacheKeys.getVary(), vary);
+        }
+
+        CacheTuple cacheTuple = null;
+        int timeToLive = 0;
+        if (!keysApply) {
+            // The next request will use the right keys
+        } else if (cacheControl.isCacheable()) {
+            cacheTuple = cacheControl.isPublic() ? cacheKeys.getPublicKey() : cacheKeys.getPrivateKey();
+            // Stale responses must remain in the cache for as long as we may still use them
+            timeToLive = cacheControl.getMaxAge()
+                    + Math.max(cacheControl.getStaleWhileRevalidate(), cacheControl.getStaleIfError());
+        } else if (etag != null && !cacheControl.isNoStore()) {
+            /*
+             * We can't serve this response again without asking, so it's safe
+             * to store it under the most specific key available.
+             */
+            cacheTuple = cacheKeys.getPrivateKey().getUsername() != null
+                    ? cacheKeys.getPrivateKey()
+                    : cacheKeys.getPublicKey();
+        }
+        if (etag != null) {
+            // Hold onto the validator for a while after the response goes stale
+            timeToLive = Math.max(timeToLive, Math.max(cacheControl.getMaxAge(), 0) + VALIDATOR_RETENTION_SECONDS);
+        }
+        logger.debug("Produced cacheTuple='{}' for cacheControlValue='{}'", cacheTuple, cacheControlValue);
+
+        final ResponseWrapper rslt = new ResponseWrapper(bytes, encoding, cacheControl, etag);
+        if (cacheTuple != null) {
+            final Element element = new Element(cacheTuple, compressIfAppropriate(rslt, serviceUrl));
+            element.setTimeToLive(timeToLive);
+            responseCache.put(element);
+            final Header cacheTagsHeader = httpResponse.getFirstHeader(SoffitRendererController.CACHE_TAGS_HEADER);
+            cacheTagIndex.index(cacheTuple,
+                    CacheTagIndex.parseTags(cacheTagsHeader != null ? cacheTagsHeader.getValue() : null));
+        } else {
+            // Any (stale) response we were holding onto no longer applies
+            responseCache.remove(cacheKeys.getPublicKey());
+            responseCache.remove(cacheKeys.getPrivateKey());
+        }
+
+        // Concurrent requests for the same content may share it only if it's public
+        responseCoalescer.setShareable(cacheKeys.getPublicKey(),
+                cacheControl.isCacheable() && cacheTuple == cacheKeys.getPublicKey(), timeToLive);
+
+        return rslt;
+
+    }
+
+    private ResponseWrapper compressIfAppropriate(final ResponseWrapper response, final String serviceUrl) {
+
+        if (responseCompressor == null || !compressResponses || response.getEncoding() != null
+                || response.getBytes().length < minCompressibleResponseBytes) {
+            return response;
+        }
+
+        try {
+            final byte[] compressed = responseCompressor.compress(response.getBytes());
+            logger.debug("Compressed the response for serviceUrl '{}' from {} to {} bytes",
+                    serviceUrl, response.getBytes().length, compressed.length);
+            return compressed.length < response.getBytes().length
+                    ? response.withContent(compressed, responseCompressor.getEncoding())
+                    : response;
+        } catch (IOException e) {
+            logger.warn("Failed to compress the response for serviceUrl '{}'", serviceUrl, e);
+            return response;
+        }
+
+    }
+
+    /**
+     * Writes the (uncompressed) content of the response to the specified
+     * stream.
+     */
+    private void writeResponse(final ResponseWrapper response, final OutputStream out) throws IOException {
 
-        final HttpEntity entity = httpResponse.getEntity();
-        ResponseWrapper rslt;
-        try {
-            rslt = new ResponseWrapper(IOUtils.toByteArray(entity.getContent()));
-        } catch (UnsupportedOperationException | IOException e) {
-            throw new RuntimeException("Failed to read the response", e);
+        if (response.getEncoding() == null) {
+            out.write(response.getBytes());
+            return;
         }
 
-        // Cache the response if indicated by the remote service
-        final Header cacheControlHeader = httpResponse.getFirstHeader(SoffitRendererController.CACHE_CONTROL_HEADER);
-        if (cacheControlHeader != null) {
-            final String cacheControlValue = cacheControlHeader.getValue();
-            logger.debug("Soffit with serviceUrl='{}' specified cache-control header value='{}'",
-                                                                serviceUrl, cacheControlValue);
-            if (!cacheControlValue.equals(SoffitRendererController.CACHE_CONTROL_NOCACHE)) {
-                CacheTuple cacheTuple = null;
-                // TODO:  Need to find a polished utility that parses a cache-control header, or write one
-                final String[] tokens = cacheControlValue.split(",");
-                // At present, we expect all valid values to be either 'no-cache' or in the form 'public, max-age=300'
-                if (tokens.length == 2) {
-                    final String maxAge = tokens[1].trim().substring("max-age=".length());
-                    int timeToLive = Integer.parseInt(maxAge);
-                    if ("private".equals(tokens[0].trim())) {
-                        cacheTuple = new CacheTuple(serviceUrl, req.getPortletMode().toString(),
-                                req.getWindowState().toString(), req.getRemoteUser());
-                    } else if ("public".equals(tokens[0].trim())) {
-                        cacheTuple = new CacheTuple(serviceUrl, req.getPortletMode().toString(),
-                                req.getWindowState().toString());
-                    }
-                    logger.debug("Produced cacheTuple='{}' for cacheControlValue='{}'", cacheTuple, cacheControlValue);
-                    if (cacheTuple != null) {
-                        final Element element = new Element(cacheTuple, rslt);
-                        element.setTimeToLive(timeToLive);
-                        responseCache.put(element);
-                    } else {
-                        logger.warn("The remote soffit specified cacheControlValue='{}', "
-                                + "but SoffitConnectorController failed to generate a cacheTuple");
-                    }
-                }
-            }
+        if (responseCompressor == null || !response.getEncoding().equals(responseCompressor.getEncoding())) {
+            throw new IOException("No IResponseCompressor for encoding:  " + response.getEncoding());
+        }
+        try (final InputStream content = responseCompressor.decompress(response.getBytes())) {
+            IOUtils.copyLarge(content, out, copyBuffer.get());
         }
-
-        return rslt;
 
     }
 
-    private Object buildPayload(final RenderRequest req, final RenderResponse res) {
+    private Object buildPayload(final RenderRequest req, final RenderResponse res, final String serviceUrl) {
+
+        final PortletPreferences prefs = req.getPreferences();
+        final String[] payloadFieldsValues = prefs.getValues(PAYLOAD_FIELDS_PREFERENCE, null);
+        PayloadFields payloadFields = payloadFieldsValues != null
+                ? PayloadFields.parse(payloadFieldsValues)
+                : declaredPayloadFields.get(serviceUrl);
+        if (payloadFields == null) {
+            payloadFields = PayloadFields.ALL;
+        }
+        req.setAttribute(PayloadFields.REQUEST_ATTRIBUTE, payloadFields);
 
+        final long startTime = System.nanoTime();
         try {
-            final String payloadClassName = req.getPreferences().getValue(PAYLOAD_CLASS_PREFERENCE, DEFAULT_PAYLOAD_CLASS);
-            Class<?> payloadClass = Class.forName(payloadClassName);
-            final Object rslt = payloadClass.newInstance();
+            final Object rslt = getPayloadConstructor(prefs.getValue(PAYLOAD_CLASS_PREFERENCE, DEFAULT_PAYLOAD_CLASS))
+                    .newInstance();
             for (ISoffitLoader loader : soffitLoaders) {
-                loader.load(rslt, req, res);
+                final long loaderStartTime = System.nanoTime();
+                if (!soffitLoaderMemo.load(loader, rslt, req, res, serviceUrl)) {
+                    loader.load(rslt, req, res);
+                }
+                soffitMetrics.recordLoaderTime(loader.getClass().getName(),
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - loaderStartTime));
+            }
+            // Some loaders may not honor the selection
+            if (!payloadFields.isAll() && rslt instanceof org.apereo.portlet.soffit.model.v1_0.Payload) {
+                payloadFields.prune((org.apereo.portlet.soffit.model.v1_0.Payload) rslt);
             }
+            soffitMetrics.recordBuildPayloadTime(serviceUrl, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
             return rslt;
         } catch (Exception e) {
             final String msg = "Failed to load the soffit payload";
@@ -266,47 +1825,93 @@ public class SoffitConnectorController implements ApplicationContextAware {
 
     }
 
+    /**
+     * Looking up the payload class (by name) and its constructor is costly
+     * compared to invoking it, so we do it once per class.
+     */
+    private Constructor<?> getPayloadConstructor(final String payloadClassName) throws ReflectiveOperationException {
+        Constructor<?> rslt = payloadConstructors.get(payloadClassName);
+        if (rslt == null) {
+            rslt = Class.forName(payloadClassName).getConstructor();
+            payloadConstructors.put(payloadClassName, rslt);
+        }
+        return rslt;
+    }
+
     /*
      * Nested Types
      */
 
-    private static final class CacheTuple {
+    /* package-private */ static final class CacheTuple implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         private final String serviceUrl;
         private final String mode;
         private final String windowState;
         private final String username;
         private final boolean publicScope;
+        private final String variant;
+        private final boolean failure;
 
         /**
          * Creates a CacheTuple for a public-scope soffit response.
          */
         public CacheTuple(String serviceUrl, String mode, String windowState) {
-            this.serviceUrl = serviceUrl;
-            this.mode = mode;
-            this.windowState = windowState;
-            this.username = null;
-            this.publicScope = true;
+            this(serviceUrl, mode, windowState, null, true, null, false);
         }
 
         /**
          * Creates a CacheTuple for a private-scope soffit response.
          */
         public CacheTuple(String serviceUrl, String mode, String windowState, String username) {
+            this(serviceUrl, mode, windowState, username, false, null, false);
+        }
+
+        private CacheTuple(String serviceUrl, String mode, String windowState, String username,
+                boolean publicScope, String variant, boolean failure) {
             this.serviceUrl = serviceUrl;
             this.mode = mode;
             this.windowState = windowState;
             this.username = username;
-            this.publicScope = false;
+            this.publicScope = publicScope;
+            this.variant = variant;
+            this.failure = failure;
+        }
+
+        /**
+         * Creates a copy of this CacheTuple for the variant of the response
+         * that applies to specific request values (see {@link CacheVary}).
+         */
+        public CacheTuple withVariant(String variant) {
+            return new CacheTuple(serviceUrl, mode, windowState, username, publicScope, variant, failure);
+        }
+
+        /**
+         * Creates a copy of this CacheTuple under which a recent failure is
+         * remembered, so that it doesn't displace a (stale) response.
+         */
+        public CacheTuple forFailure() {
+            return new CacheTuple(serviceUrl, mode, windowState, username, publicScope, variant, true);
+        }
+
+        public String getServiceUrl() {
+            return serviceUrl;
+        }
+
+        public String getUsername() {
+            return username;
         }
 
         @Override
         public int hashCode() {
             final int prime = 31;
             int result = 1;
+            result = prime * result + (failure ? 1231 : 1237);
             result = prime * result + ((mode == null) ? 0 : mode.hashCode());
             result = prime * result + (publicScope ? 1231 : 1237);
             result = prime * result + ((serviceUrl == null) ? 0 : serviceUrl.hashCode());
             result = prime * result + ((username == null) ? 0 : username.hashCode());
+            result = prime * result + ((variant == null) ? 0 : variant.hashCode());
             result = prime * result + ((windowState == null) ? 0 : windowState.hashCode());
             return result;
         }
@@ -320,6 +1925,8 @@ public class SoffitConnectorController implements ApplicationContextAware {
             if (getClass() != obj.getClass())
                 return false;
             CacheTuple other = (CacheTuple) obj;
+            if (failure != other.failure)
+                return false;
             if (mode == null) {
                 if (other.mode != null)
                     return false;
@@ -337,6 +1944,11 @@ public class SoffitConnectorController implements ApplicationContextAware {
                     return false;
             } else if (!username.equals(other.username))
                 return false;
+            if (variant == null) {
+                if (other.variant != null)
+                    return false;
+            } else if (!variant.equals(other.variant))
+                return false;
             if (windowState == null) {
                 if (other.windowState != null)
                     return false;
@@ -348,21 +1960,500 @@ public class SoffitConnectorController implements ApplicationContextAware {
         @Override
         public String toString() {
             return "CacheTuple [serviceUrl=" + serviceUrl + ", mode=" + mode + ", windowState=" + windowState
-                    + ", username=" + username + ", publicScope=" + publicScope + "]";
+                    + ", username=" + username + ", publicScope=" + publicScope + ", variant=" + variant
+                    + ", failure=" + failure + "]";
+        }
+
+    }
+
+    /**
+     * The cache keys under which a response to a specific request may be
+     * stored, calculated ahead of time so that the response may be processed
+     * on a thread other than the one that's handling the request.
+     */
+    private static final class CacheKeys {
+        private final CacheTuple publicKey;
+        private final CacheTuple privateKey;
+        private final CacheVary vary;
+
+        public CacheKeys(CacheTuple publicKey, CacheTuple privateKey, CacheVary vary) {
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+            this.vary = vary;
+        }
+
+        public CacheTuple getPublicKey() {
+            return publicKey;
+        }
+
+        public CacheTuple getPrivateKey() {
+            return privateKey;
+        }
+
+        /**
+         * The declaration the keys were calculated from.
+         */
+        public CacheVary getVary() {
+            return vary;
+        }
+
+        /**
+         * The key under which a recent failure is remembered (for all users).
+         */
+        public CacheTuple getFailureKey() {
+            return publicKey.forFailure();
+        }
+    }
+
+    /**
+     * How long failures in each status class are remembered, in seconds.
+     */
+    private static final class FailureCacheSeconds {
+        public static final FailureCacheSeconds DEFAULT =
+                new FailureCacheSeconds(FAILURE_CACHE_SECONDS, FAILURE_CACHE_SECONDS, 0);
+
+        private final int timeout;
+        private final int serverError;
+        private final int clientError;
+
+        public FailureCacheSeconds(int timeout, int serverError, int clientError) {
+            this.timeout = timeout;
+            this.serverError = serverError;
+            this.clientError = clientError;
+        }
+
+        public int forStatusCode(int statusCode) {
+            if (statusCode == HttpStatus.SC_GATEWAY_TIMEOUT) {
+                return timeout;
+            }
+            return statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR ? serverError : clientError;
+        }
+    }
+
+    /**
+     * Thrown when the connector stops reading a response because it's too
+     * large or there isn't memory to buffer it.
+     */
+    private static final class ResponseLimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public ResponseLimitException(String message, int statusCode) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * The status code reported for the failure.
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    /**
+     * Everything needed to invoke a remote soffit, gathered from the
+     * {@link RenderRequest} ahead of time so that the soffit may be invoked on
+     * another thread.
+     */
+    /* package-private */ static final class FetchRequest {
+        private final String serviceUrl;
+        private final List<String> replicaUrls;
+        private final boolean hedged;
+        private final Object payload;
+        private final CacheKeys cacheKeys;
+        private final ResponseWrapper cachedValue;
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final long deadline;
+        private final FailureCacheSeconds failureCacheSeconds;
+        private final int maxResponseBytes;
+        private final OutputStream sink;
+
+        public FetchRequest(String serviceUrl, List<String> replicaUrls, boolean hedged, Object payload,
+                CacheKeys cacheKeys, ResponseWrapper cachedValue, int connectTimeout, int readTimeout, long deadline,
+                FailureCacheSeconds failureCacheSeconds, int maxResponseBytes, OutputStream sink) {
+            this.serviceUrl = serviceUrl;
+            this.replicaUrls = replicaUrls;
+            this.hedged = hedged;
+            this.payload = payload;
+            this.cacheKeys = cacheKeys;
+            this.cachedValue = cachedValue;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.deadline = deadline;
+            this.failureCacheSeconds = failureCacheSeconds;
+            this.maxResponseBytes = maxResponseBytes;
+            this.sink = sink;
+        }
+
+        public String getServiceUrl() {
+            return serviceUrl;
+        }
+
+        public List<String> getReplicaUrls() {
+            return replicaUrls;
+        }
+
+        public boolean isHedged() {
+            return hedged;
+        }
+
+        public Object getPayload() {
+            return payload;
+        }
+
+        public CacheKeys getCacheKeys() {
+            return cacheKeys;
+        }
+
+        /**
+         * The (stale) cached response for this request, if any.
+         */
+        public ResponseWrapper getCachedValue() {
+            return cachedValue;
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        /**
+         * The time (in epoch milliseconds) by which the response is needed.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public long getRemainingMillis() {
+            return deadline - System.currentTimeMillis();
+        }
+
+        public FailureCacheSeconds getFailureCacheSeconds() {
+            return failureCacheSeconds;
+        }
+
+        public int getMaxResponseBytes() {
+            return maxResponseBytes;
+        }
+
+        /**
+         * Where to stream the response, or null to buffer it.
+         */
+        public OutputStream getSink() {
+            return sink;
+        }
+    }
+
+    /**
+     * Streams the payload into the request body as it's serialized, so
+     * that it never exists in memory as a whole.  The entity is chunked (its
+     * length isn't known in advance) and repeatable (it simply serializes the
+     * payload again).
+     */
+    private final class PayloadEntity extends AbstractHttpEntity {
+        private final String serviceUrl;
+        private final String replicaUrl;
+        private final ObjectWriter writer;
+        private final Object payload;
+        private final boolean gzip;
+
+        public PayloadEntity(String serviceUrl, String replicaUrl, ObjectWriter writer, String contentType,
+                Object payload, boolean gzip) {
+            this.serviceUrl = serviceUrl;
+            this.replicaUrl = replicaUrl;
+            this.writer = writer;
+            this.payload = payload;
+            this.gzip = gzip;
+            setContentType(contentType);
+            if (gzip) {
+                setContentEncoding(SoffitRendererController.GZIP_ENCODING);
+            }
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1L;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final ByteArrayOutputStream rslt = new ByteArrayOutputStream();
+            writeTo(rslt);
+            return new ByteArrayInputStream(rslt.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            final CountingOutputStream sent = new CountingOutputStream(outstream);
+            final GZIPOutputStream compressed = gzip ? new GZIPOutputStream(sent, COPY_BUFFER_SIZE) : null;
+            final CountingOutputStream serialized = new CountingOutputStream(compressed != null ? compressed : sent);
+            writer.writeValue(serialized, payload);
+            if (compressed != null) {
+                compressed.finish();
+            }
+            payloadSizes.put(replicaUrl, serialized.getByteCount());
+            soffitMetrics.recordPayloadSize(serviceUrl, sent.getByteCount());
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * Lets the {@link SoffitBatcher} use the same fetch pipeline as
+     * individual requests.
+     */
+    private final class BatcherDelegate implements SoffitBatcher.Delegate {
+
+        @Override
+        public ResponseWrapper fetch(FetchRequest fetchRequest) {
+            return fetchContentCoalesced(fetchRequest);
+        }
+
+        @Override
+        public HttpEntity createPayloadEntity(String serviceUrl, String replicaUrl, Object payload) {
+            return SoffitConnectorController.this.createPayloadEntity(serviceUrl, replicaUrl, payload);
+        }
+
+        @Override
+        public void learnPayloadFormats(HttpResponse httpResponse, String replicaUrl, int statusCode) {
+            SoffitConnectorController.this.learnPayloadFormats(httpResponse, replicaUrl, statusCode);
+        }
+
+        @Override
+        public void learnSoffitDeclarations(HttpResponse httpResponse, String serviceUrl, int statusCode) {
+            SoffitConnectorController.this.learnSoffitDeclarations(httpResponse, serviceUrl, statusCode);
+        }
+
+        @Override
+        public byte[] readResponse(HttpEntity entity, long maxResponseBytes, long remainingMillis) throws IOException {
+            return SoffitConnectorController.this.readResponse(entity, maxResponseBytes, remainingMillis);
+        }
+
+        @Override
+        public ResponseWrapper cacheResponseIfAppropriate(HttpResponse httpResponse, byte[] bytes,
+                FetchRequest fetchRequest) {
+            return SoffitConnectorController.this.cacheResponseIfAppropriate(httpResponse, bytes, null, null,
+                    fetchRequest.getCacheKeys(), fetchRequest.getServiceUrl());
+        }
+
+        @Override
+        public void cacheFailureIfAppropriate(FetchRequest fetchRequest, ResponseWrapper response) {
+            SoffitConnectorController.this.cacheFailureIfAppropriate(fetchRequest, response);
+        }
+
+    }
+
+    private static final class PendingFetch {
+        private final FetchRequest fetchRequest;
+        private final Future<ResponseWrapper> future;
+        private final SoffitBatcher.FetchBatch batch;
+        private final long timestamp = System.currentTimeMillis();
+
+        public PendingFetch(FetchRequest fetchRequest, Future<ResponseWrapper> future, SoffitBatcher.FetchBatch batch) {
+            this.fetchRequest = fetchRequest;
+            this.future = future;
+            this.batch = batch;
+        }
+
+        /**
+         * The batch the fetch belongs to, or null if it's being fetched on its
+         * own.
+         */
+        public SoffitBatcher.FetchBatch getBatch() {
+            return batch;
+        }
+
+        public FetchRequest getFetchRequest() {
+            return fetchRequest;
+        }
+
+        public Future<ResponseWrapper> getFuture() {
+            return future;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
         }
+    }
 
+    /* package-private */ static final class FetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread rslt = new Thread(r, "soffit-fetch-" + threadNumber.getAndIncrement());
+            rslt.setDaemon(true);
+            return rslt;
+        }
     }
 
-    public static final class ResponseWrapper {
+    /**
+     * Cached responses are serializable so that the response cache may be
+     * configured with a disk tier.
+     */
+    public static final class ResponseWrapper implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Markup displayed in place of a soffit that could not be invoked;  the
+         * reason is included as a comment for administrators.
+         */
+        private static final String FAILURE_CONTENT_FORMAT =
+                "<div class=\"soffit-failure\">This content is temporarily unavailable.<!-- %s --></div>";
+
         private final byte[] bytes;
+        private final String encoding;
+        private final String etag;
+        private final boolean failure;
+        private final boolean local;
+        private final int statusCode;
+        private final long freshUntil;
+        private final long staleWhileRevalidateUntil;
+        private final long staleIfErrorUntil;
 
+        /**
+         * Creates a ResponseWrapper for a response that will not be cached.
+         */
         public ResponseWrapper(byte[] bytes) {
+            this(bytes, null, null, false, false, HttpStatus.SC_OK, 0L, 0L, 0L);
+        }
+
+        /**
+         * Creates a ResponseWrapper for a response that may be cached
+         * according to the specified directives, starting now.  The
+         * <code>encoding</code> (of the bytes) and the <code>etag</code> may
+         * be null.
+         */
+        public ResponseWrapper(byte[] bytes, String encoding, CacheControl cacheControl, String etag) {
+            this(bytes, encoding, etag, false, false, HttpStatus.SC_OK, System.currentTimeMillis() + (Math.max(cacheControl.getMaxAge(), 0) * 1000L),
+                    cacheControl.getStaleWhileRevalidate() * 1000L, cacheControl.getStaleIfError() * 1000L);
+        }
+
+        private ResponseWrapper(byte[] bytes, String encoding, String etag, boolean failure, boolean local,
+                int statusCode, long freshUntil, long staleWhileRevalidateMillis, long staleIfErrorMillis) {
             this.bytes = bytes;
+            this.encoding = encoding;
+            this.etag = etag;
+            this.failure = failure;
+            this.local = local;
+            this.statusCode = statusCode;
+            this.freshUntil = freshUntil;
+            this.staleWhileRevalidateUntil = freshUntil + staleWhileRevalidateMillis;
+            this.staleIfErrorUntil = freshUntil + staleIfErrorMillis;
+        }
+
+        /**
+         * Creates a ResponseWrapper for the content displayed in place of a
+         * soffit that could not be invoked successfully.  The
+         * <code>statusCode</code> is the one the soffit returned, or 504 if it
+         * timed out, or 503 if it could not be reached.  The
+         * <code>reason</code> is a short description for administrators;  it
+         * is not shown to the user.
+         */
+        public static ResponseWrapper forFailure(String reason, int statusCode) {
+            return new ResponseWrapper(createFailureContent(reason), null, null, true, false, statusCode, 0L, 0L, 0L);
+        }
+
+        /**
+         * Creates a ResponseWrapper for a failure that originated on this node
+         * -- e.g. the deadline passed while the request was queued, the
+         * circuit is open, or there isn't memory to buffer the response --
+         * rather than with the soffit.  Local failures are not remembered
+         * (negatively cached) or counted against the soffit.
+         */
+        public static ResponseWrapper forLocalFailure(String reason, int statusCode) {
+            return new ResponseWrapper(createFailureContent(reason), null, null, true, true, statusCode, 0L, 0L, 0L);
+        }
+
+        private static byte[] createFailureContent(String reason) {
+            return String.format(FAILURE_CONTENT_FORMAT, reason).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Creates a copy of this ResponseWrapper with the same metadata, but
+         * with content that has been (re-)encoded.
+         */
+        public ResponseWrapper withContent(byte[] bytes, String encoding) {
+            return new ResponseWrapper(bytes, encoding, etag, failure, local, statusCode, freshUntil,
+                    staleWhileRevalidateUntil - freshUntil, staleIfErrorUntil - freshUntil);
         }
 
         public byte[] getBytes() {
             return bytes;
         }
+
+        /**
+         * The {@link IResponseCompressor} encoding of the bytes, or null if
+         * they are not compressed.
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * The validator sent by the remote soffit with this response, if any.
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        public boolean isFailure() {
+            return failure;
+        }
+
+        /**
+         * True if this is a failure that originated on this node, rather than
+         * with the soffit.
+         */
+        public boolean isLocal() {
+            return local;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * The time (in epoch milliseconds) at which this response passes its
+         * <code>max-age</code>.
+         */
+        public long getFreshUntil() {
+            return freshUntil;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < freshUntil;
+        }
+
+        /**
+         * True if this response is past its <code>max-age</code>, but may be
+         * served while a replacement is fetched in the background.
+         */
+        public boolean isUsableWhileRevalidating() {
+            return !isFresh() && System.currentTimeMillis() < staleWhileRevalidateUntil;
+        }
+
+        /**
+         * True if this response may be served in place of an error.
+         */
+        public boolean isUsableIfError() {
+            return System.currentTimeMillis() < staleIfErrorUntil;
+        }
     }
 
 }
@@ -0,0 +1,50 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.io.IOException;
+
+import javax.portlet.PortletException;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+
+import org.springframework.web.portlet.DispatcherPortlet;
+
+/**
+ * {@link DispatcherPortlet} for the Soffit Connector that also dispatches the
+ * headers phase of two-phase rendering.  <code>GenericPortlet</code> sends the
+ * <code>RENDER_HEADERS</code> part of a render to <code>doHeaders</code>, which
+ * <code>DispatcherPortlet</code> does not override, so without this class the
+ * {@link SoffitConnectorController} would never see the headers phase and
+ * couldn't begin fetching soffits before the markup phase.
+ */
+public class SoffitConnectorPortlet extends DispatcherPortlet {
+
+    @Override
+    protected void doHeaders(RenderRequest request, RenderResponse response) {
+        try {
+            processRequest(request, response);
+        } catch (PortletException | IOException e) {
+            // The markup phase will fetch the soffit normally
+            logger.warn("Failed to process the headers phase of the render", e);
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.PortletSession;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+
+import org.apereo.portlet.soffit.connector.IScopedSoffitLoader.Scope;
+import org.apereo.portlet.soffit.model.v1_0.Context;
+import org.apereo.portlet.soffit.model.v1_0.Definition;
+import org.apereo.portlet.soffit.model.v1_0.Group;
+import org.apereo.portlet.soffit.model.v1_0.Payload;
+import org.apereo.portlet.soffit.model.v1_0.Request;
+import org.apereo.portlet.soffit.model.v1_0.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Memoizes the contributions of {@link IScopedSoffitLoader} beans to the
+ * payload at their declared scope.  Contributions are keyed by the loader and
+ * by what the scope depends on:
+ *
+ * <ul>
+ *   <li><code>PORTAL</code> -- nothing</li>
+ *   <li><code>DEFINITION</code> -- the serviceUrl and the portlet preferences,
+ *   so that changing a preference invalidates the contribution</li>
+ *   <li><code>SESSION</code> -- the portlet session (if there is one) and the
+ *   remote user, so that a new session (or a new user in the same session)
+ *   invalidates it</li>
+ * </ul>
+ *
+ * Every contribution also expires after a time-to-live, so that changes the
+ * key doesn't capture (e.g. new user attributes) eventually appear;  the least
+ * recently used contributions are discarded when there are too many.  Both
+ * limits may be set as bean properties or adjusted at runtime over JMX, where
+ * the memo may also be cleared.<p>
+ *
+ * Loaders are invoked with the full payload selection ({@link PayloadFields#ALL}),
+ * so that a contribution may be shared by soffits that need different fields;
+ * the {@link SoffitConnectorController} prunes each payload before it's sent.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=SoffitLoaderMemo")
+public class SoffitLoaderMemo {
+
+    public static final int DEFAULT_TIME_TO_LIVE_SECONDS = 300;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private int timeToLiveSeconds = DEFAULT_TIME_TO_LIVE_SECONDS;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private final Map<String,Contribution> contributions = new LinkedHashMap<String,Contribution>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Contribution> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Loads the payload with the memoized contribution of the loader,
+     * invoking the loader first if necessary.
+     *
+     * @return False if the loader's contribution is not memoized (in which
+     * case the caller must invoke it), otherwise true
+     */
+    public boolean load(ISoffitLoader loader, Object soffit, RenderRequest req, RenderResponse res,
+            String serviceUrl) {
+
+        if (!(loader instanceof IScopedSoffitLoader) || !(soffit instanceof Payload)) {
+            return false;
+        }
+        final Scope scope = ((IScopedSoffitLoader) loader).getScope();
+        if (scope == null || scope == Scope.REQUEST) {
+            return false;
+        }
+
+        final String key = getKey(loader, scope, req, serviceUrl);
+        final long now = System.currentTimeMillis();
+        Payload contribution = null;
+        synchronized (contributions) {
+            final Contribution memoized = contributions.get(key);
+            if (memoized != null && memoized.getExpires() > now) {
+                contribution = memoized.getPayload();
+            }
+        }
+
+        if (contribution != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+            logger.debug("Invoking {} loader {} to memoize its contribution", scope, loader);
+            contribution = new Payload();
+            final Object payloadFields = req.getAttribute(PayloadFields.REQUEST_ATTRIBUTE);
+            req.setAttribute(PayloadFields.REQUEST_ATTRIBUTE, PayloadFields.ALL);
+            try {
+                loader.load(contribution, req, res);
+            } finally {
+                req.setAttribute(PayloadFields.REQUEST_ATTRIBUTE, payloadFields);
+            }
+            synchronized (contributions) {
+                contributions.put(key, new Contribution(contribution, now + timeToLiveSeconds * 1000L));
+            }
+        }
+
+        merge(contribution, (Payload) soffit);
+        return true;
+
+    }
+
+    @ManagedAttribute(description="How long (in seconds) a loader's contribution is memoized")
+    public int getTimeToLiveSeconds() {
+        return timeToLiveSeconds;
+    }
+
+    @ManagedAttribute
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    @ManagedAttribute(description="Maximum number of memoized contributions")
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @ManagedAttribute
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    @ManagedAttribute(description="Number of memoized contributions")
+    public int getEntryCount() {
+        synchronized (contributions) {
+            return contributions.size();
+        }
+    }
+
+    @ManagedAttribute(description="Number of times a memoized contribution was used")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedAttribute(description="Number of times a scoped loader was invoked")
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @ManagedOperation(description="Discards every memoized contribution")
+    public void clear() {
+        synchronized (contributions) {
+            contributions.clear();
+        }
+        logger.info("Cleared the memoized contributions of soffit loaders");
+    }
+
+    /*
+     * Implementation
+     */
+
+    private String getKey(ISoffitLoader loader, Scope scope, RenderRequest req, String serviceUrl) {
+
+        final StringBuilder rslt = new StringBuilder()
+                .append(loader.getClass().getName()).append('@')
+                .append(Integer.toHexString(System.identityHashCode(loader))).append(':')
+                .append(scope);
+        switch (scope) {
+            case DEFINITION:
+                rslt.append(':').append(serviceUrl);
+                for (Map.Entry<String,String[]> y : new TreeMap<>(req.getPreferences().getMap()).entrySet()) {
+                    rslt.append(':').append(y.getKey()).append('=').append(Arrays.toString(y.getValue()));
+                }
+                break;
+            case SESSION:
+                // Users without a session (i.e. guests) share the contribution
+                final PortletSession session = req.getPortletSession(false);
+                rslt.append(':').append(session != null ? session.getId() : "")
+                        .append(':').append(req.getRemoteUser());
+                break;
+            default:
+                break;
+        }
+        return rslt.toString();
+
+    }
+
+    /**
+     * Adds the contribution to the payload.  The payload receives copies, so
+     * that later loaders -- and pruning -- leave the contribution intact.
+     */
+    private static void merge(Payload from, Payload into) {
+
+        if (from.getRequest() != null) {
+            if (into.getRequest() == null) {
+                into.setRequest(new Request());
+            }
+            final Request source = from.getRequest();
+            final Request target = into.getRequest();
+            if (source.getWindowId() != null) {
+                target.setWindowId(source.getWindowId());
+            }
+            if (source.getWindowState() != null) {
+                target.setWindowState(source.getWindowState());
+            }
+            for (Map.Entry<String,List<String>> y : source.getAttributes().entrySet()) {
+                target.setAttribute(y.getKey(), copy(y.getValue()));
+            }
+            for (Map.Entry<String,List<String>> y : source.getParameters().entrySet()) {
+                target.setParameter(y.getKey(), copy(y.getValue()));
+            }
+            for (Map.Entry<String,String> y : source.getProperties().entrySet()) {
+                target.setProperty(y.getKey(), y.getValue());
+            }
+        }
+
+        if (from.getUser() != null) {
+            if (into.getUser() == null) {
+                into.setUser(new User());
+            }
+            final User source = from.getUser();
+            final User target = into.getUser();
+            if (source.getUsername() != null) {
+                target.setUsername(source.getUsername());
+            }
+            for (Map.Entry<String,List<String>> y : source.getAttributes().entrySet()) {
+                target.setAttribute(y.getKey(), copy(y.getValue()));
+            }
+            for (Group group : source.getGroups()) {
+                target.addGroup(group);
+            }
+        }
+
+        if (from.getContext() != null) {
+            if (into.getContext() == null) {
+                into.setContext(new Context());
+            }
+            final Context source = from.getContext();
+            final Context target = into.getContext();
+            if (source.getPortalInfo() != null) {
+                target.setPortalInfo(source.getPortalInfo());
+            }
+            for (Map.Entry<String,List<String>> y : source.getAttributes().entrySet()) {
+                target.setAttribute(y.getKey(), copy(y.getValue()));
+            }
+            for (String windowState : source.getSupportedWindowStates()) {
+                target.addSupportedWindowState(windowState);
+            }
+        }
+
+        if (from.getDefinition() != null) {
+            if (into.getDefinition() == null) {
+                into.setDefinition(new Definition());
+            }
+            final Definition source = from.getDefinition();
+            final Definition target = into.getDefinition();
+            if (source.getTitle() != null) {
+                target.setTitle(source.getTitle());
+            }
+            if (source.getFname() != null) {
+                target.setFname(source.getFname());
+            }
+            if (source.getDescription() != null) {
+                target.setDescription(source.getDescription());
+            }
+            for (String category : source.getCategories()) {
+                target.addCategory(category);
+            }
+            for (Map.Entry<String,List<String>> y : source.getParameters().entrySet()) {
+                target.setParameter(y.getKey(), copy(y.getValue()));
+            }
+            for (Map.Entry<String,List<String>> y : source.getPreferences().entrySet()) {
+                target.setPreference(y.getKey(), copy(y.getValue()));
+            }
+        }
+
+    }
+
+    private static List<String> copy(List<String> values) {
+        return values != null ? new ArrayList<>(values) : null;
+    }
+
+    /*
+     * Nested Types
+     */
+
+    private static final class Contribution {
+        private final Payload payload;
+        private final long expires;
+
+        public Contribution(Payload payload, long expires) {
+            this.payload = payload;
+            this.expires = expires;
+        }
+
+        public Payload getPayload() {
+            return payload;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+    }
+
+}
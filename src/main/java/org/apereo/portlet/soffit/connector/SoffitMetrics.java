@@ -0,0 +1,339 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.MBeanExportException;
+import org.springframework.jmx.export.MBeanExporter;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects metrics on the {@link SoffitConnectorController} for each remote
+ * soffit (by serviceUrl):  cache hits and misses, the latency and outcome of
+ * remote calls, payload and response sizes, and the time spent building
+ * payloads.  The metrics for each soffit are exposed as a separate MBean
+ * named <code>org.apereo.portlet.soffit:type=ServiceMetrics,serviceUrl=...</code>,
+ * registered when the soffit is first invoked.  Loader timings are exposed by
+ * this bean.
+ */
+@Component
+@ManagedResource(objectName="org.apereo.portlet.soffit:name=SoffitMetrics")
+public class SoffitMetrics {
+
+    private static final String SERVICE_METRICS_OBJECT_NAME_FORMAT =
+            "org.apereo.portlet.soffit:type=ServiceMetrics,serviceUrl=%s";
+
+    /**
+     * Number of recent samples retained for each histogram.
+     */
+    private static final int WINDOW_SIZE = 1000;
+
+    private final ConcurrentMap<String,ServiceMetrics> serviceMetrics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,SampleWindow> loaderTimings = new ConcurrentHashMap<>();
+
+    @Autowired(required=false)
+    private MBeanExporter mbeanExporter;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public void recordCacheHit(String serviceUrl, boolean publicScope) {
+        final ServiceMetrics metrics = getServiceMetrics(serviceUrl);
+        (publicScope ? metrics.publicCacheHits : metrics.privateCacheHits).incrementAndGet();
+    }
+
+    public void recordCacheMiss(String serviceUrl) {
+        getServiceMetrics(serviceUrl).cacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Records a render that was given a recent failure instead of invoking
+     * the soffit again.
+     */
+    public void recordCachedFailure(String serviceUrl) {
+        getServiceMetrics(serviceUrl).cachedFailures.incrementAndGet();
+    }
+
+    /**
+     * Records a render that wrote a placeholder, leaving the browser to fetch
+     * the soffit's markup.
+     */
+    public void recordDeferredRender(String serviceUrl) {
+        getServiceMetrics(serviceUrl).deferredRenders.incrementAndGet();
+    }
+
+    /**
+     * Records a remote call that produced a response, whatever its status.
+     */
+    public void recordRemoteCall(String serviceUrl, long latencyMillis, int statusCode) {
+        final ServiceMetrics metrics = getServiceMetrics(serviceUrl);
+        metrics.remoteCalls.incrementAndGet();
+        metrics.remoteLatencies.add(latencyMillis);
+        if (statusCode != 200 && statusCode != 304) {
+            metrics.errorStatuses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a remote call that timed out (or wasn't attempted because its
+     * deadline had passed).
+     */
+    public void recordTimeout(String serviceUrl) {
+        getServiceMetrics(serviceUrl).timeouts.incrementAndGet();
+    }
+
+    /**
+     * Records a remote call that failed for a reason other than a timeout.
+     */
+    public void recordError(String serviceUrl) {
+        getServiceMetrics(serviceUrl).errors.incrementAndGet();
+    }
+
+    public void recordPayloadSize(String serviceUrl, long bytes) {
+        getServiceMetrics(serviceUrl).payloadSizes.add(bytes);
+    }
+
+    public void recordResponseSize(String serviceUrl, long bytes) {
+        getServiceMetrics(serviceUrl).responseSizes.add(bytes);
+    }
+
+    public void recordBuildPayloadTime(String serviceUrl, long micros) {
+        getServiceMetrics(serviceUrl).buildPayloadTimes.add(micros);
+    }
+
+    public void recordLoaderTime(String loaderName, long micros) {
+        SampleWindow window = loaderTimings.get(loaderName);
+        if (window == null) {
+            final SampleWindow created = new SampleWindow(WINDOW_SIZE, 1);
+            window = loaderTimings.putIfAbsent(loaderName, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        window.add(micros);
+    }
+
+    @ManagedAttribute(description="The serviceUrls of soffits for which metrics are available")
+    public String[] getServiceUrls() {
+        return serviceMetrics.keySet().toArray(new String[0]);
+    }
+
+    @ManagedAttribute(description="Time spent in each ISoffitLoader (microseconds)")
+    public String[] getLoaderTimings() {
+        final List<String> rslt = new ArrayList<>();
+        for (Map.Entry<String,SampleWindow> y : loaderTimings.entrySet()) {
+            final SampleWindow window = y.getValue();
+            rslt.add(y.getKey() + " p50=" + window.getPercentile(0.5) + ", p95=" + window.getPercentile(0.95)
+                    + ", p99=" + window.getPercentile(0.99));
+        }
+        return rslt.toArray(new String[rslt.size()]);
+    }
+
+    @ManagedOperation(description="Clears all metrics")
+    public void reset() {
+        for (ServiceMetrics metrics : serviceMetrics.values()) {
+            metrics.reset();
+        }
+        for (SampleWindow window : loaderTimings.values()) {
+            window.clear();
+        }
+    }
+
+    /*
+     * Implementation
+     */
+
+    private ServiceMetrics getServiceMetrics(String serviceUrl) {
+        ServiceMetrics rslt = serviceMetrics.get(serviceUrl);
+        if (rslt == null) {
+            final ServiceMetrics created = new ServiceMetrics();
+            rslt = serviceMetrics.putIfAbsent(serviceUrl, created);
+            if (rslt == null) {
+                rslt = created;
+                register(serviceUrl, created);
+            }
+        }
+        return rslt;
+    }
+
+    private void register(String serviceUrl, ServiceMetrics metrics) {
+        if (mbeanExporter == null) {
+            return;
+        }
+        try {
+            final ObjectName objectName = ObjectName.getInstance(
+                    String.format(SERVICE_METRICS_OBJECT_NAME_FORMAT, ObjectName.quote(serviceUrl)));
+            mbeanExporter.registerManagedResource(metrics, objectName);
+        } catch (MalformedObjectNameException | MBeanExportException e) {
+            logger.warn("Unable to expose metrics for serviceUrl '{}' through JMX", serviceUrl, e);
+        }
+    }
+
+    /*
+     * Nested Types
+     */
+
+    @ManagedResource
+    public static final class ServiceMetrics {
+
+        private final AtomicLong publicCacheHits = new AtomicLong();
+        private final AtomicLong privateCacheHits = new AtomicLong();
+        private final AtomicLong cacheMisses = new AtomicLong();
+        private final AtomicLong cachedFailures = new AtomicLong();
+        private final AtomicLong deferredRenders = new AtomicLong();
+        private final AtomicLong remoteCalls = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong errorStatuses = new AtomicLong();
+        private final SampleWindow remoteLatencies = new SampleWindow(WINDOW_SIZE, 1);
+        private final SampleWindow payloadSizes = new SampleWindow(WINDOW_SIZE, 1);
+        private final SampleWindow responseSizes = new SampleWindow(WINDOW_SIZE, 1);
+        private final SampleWindow buildPayloadTimes = new SampleWindow(WINDOW_SIZE, 1);
+
+        @ManagedAttribute(description="Fresh responses served from the cache under a public-scope key")
+        public long getPublicCacheHits() {
+            return publicCacheHits.get();
+        }
+
+        @ManagedAttribute(description="Fresh responses served from the cache under a private-scope key")
+        public long getPrivateCacheHits() {
+            return privateCacheHits.get();
+        }
+
+        @ManagedAttribute(description="Renders for which the cache held no fresh response")
+        public long getCacheMisses() {
+            return cacheMisses.get();
+        }
+
+        @ManagedAttribute(description="Fraction of renders served from the cache")
+        public double getCacheHitRatio() {
+            final long hits = publicCacheHits.get() + privateCacheHits.get();
+            final long total = hits + cacheMisses.get();
+            return total != 0 ? (double) hits / total : 0.0;
+        }
+
+        @ManagedAttribute(description="Renders given a recent failure instead of invoking the soffit again")
+        public long getCachedFailures() {
+            return cachedFailures.get();
+        }
+
+        @ManagedAttribute(description="Renders that deferred the soffit's markup to the browser")
+        public long getDeferredRenders() {
+            return deferredRenders.get();
+        }
+
+        @ManagedAttribute(description="Remote calls that produced a response")
+        public long getRemoteCalls() {
+            return remoteCalls.get();
+        }
+
+        @ManagedAttribute(description="Remote calls that timed out")
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        @ManagedAttribute(description="Remote calls that failed without a response, other than timeouts")
+        public long getErrors() {
+            return errors.get();
+        }
+
+        @ManagedAttribute(description="Remote calls that produced a status other than 200 or 304")
+        public long getErrorStatuses() {
+            return errorStatuses.get();
+        }
+
+        @ManagedAttribute(description="Median latency of recent remote calls (milliseconds)")
+        public long getRemoteLatencyP50() {
+            return remoteLatencies.getPercentile(0.5);
+        }
+
+        @ManagedAttribute(description="95th percentile latency of recent remote calls (milliseconds)")
+        public long getRemoteLatencyP95() {
+            return remoteLatencies.getPercentile(0.95);
+        }
+
+        @ManagedAttribute(description="99th percentile latency of recent remote calls (milliseconds)")
+        public long getRemoteLatencyP99() {
+            return remoteLatencies.getPercentile(0.99);
+        }
+
+        @ManagedAttribute(description="Mean size of recent payloads, as sent (bytes)")
+        public long getPayloadBytesMean() {
+            return payloadSizes.getMean();
+        }
+
+        @ManagedAttribute(description="95th percentile size of recent payloads, as sent (bytes)")
+        public long getPayloadBytesP95() {
+            return payloadSizes.getPercentile(0.95);
+        }
+
+        @ManagedAttribute(description="Mean size of recent responses (bytes)")
+        public long getResponseBytesMean() {
+            return responseSizes.getMean();
+        }
+
+        @ManagedAttribute(description="95th percentile size of recent responses (bytes)")
+        public long getResponseBytesP95() {
+            return responseSizes.getPercentile(0.95);
+        }
+
+        @ManagedAttribute(description="Median time spent building payloads (microseconds)")
+        public long getBuildPayloadMicrosP50() {
+            return buildPayloadTimes.getPercentile(0.5);
+        }
+
+        @ManagedAttribute(description="95th percentile time spent building payloads (microseconds)")
+        public long getBuildPayloadMicrosP95() {
+            return buildPayloadTimes.getPercentile(0.95);
+        }
+
+        private void reset() {
+            publicCacheHits.set(0L);
+            privateCacheHits.set(0L);
+            cacheMisses.set(0L);
+            cachedFailures.set(0L);
+            deferredRenders.set(0L);
+            remoteCalls.set(0L);
+            timeouts.set(0L);
+            errors.set(0L);
+            errorStatuses.set(0L);
+            remoteLatencies.clear();
+            payloadSizes.clear();
+            responseSizes.clear();
+            buildPayloadTimes.clear();
+        }
+
+    }
+
+}
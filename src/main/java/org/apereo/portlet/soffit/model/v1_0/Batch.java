@@ -0,0 +1,149 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.model.v1_0;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request to render several soffits served by the same application at
+ * once.  The <code>user</code> and <code>context</code> (which are normally
+ * the same for every soffit on a page) are sent once;  each {@link Item}
+ * carries a {@link Payload} without them, unless its own differ.
+ */
+public class Batch {
+
+    private User user;
+    private Context context;
+    private List<Item> items = new ArrayList<>();
+
+    public User getUser() {
+        return user;
+    }
+
+    public Batch setUser(User user) {
+        this.user = user;
+        return this;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    public Batch setContext(Context context) {
+        this.context = context;
+        return this;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public Batch setItems(List<Item> items) {
+        this.items = items;
+        return this;
+    }
+
+    /**
+     * Returns the complete payload for the item, filling in the shared
+     * <code>user</code> and <code>context</code> if it doesn't specify its own.
+     */
+    public Payload getPayload(Item item) {
+        final Payload rslt = item.getPayload();
+        if (rslt.getUser() == null) {
+            rslt.setUser(user);
+        }
+        if (rslt.getContext() == null) {
+            rslt.setContext(context);
+        }
+        return rslt;
+    }
+
+    @Override
+    public String toString() {
+        return "Batch [user=" + user + ", context=" + context + ", items=" + items + "]";
+    }
+
+    /*
+     * Nested Types
+     */
+
+    public static class Item {
+
+        private String id;
+        private String module;
+        private Long renderBudget;
+        private Payload payload;
+
+        /**
+         * Identifies the item (and its {@link BatchResult.Part}) within the
+         * batch.
+         */
+        public String getId() {
+            return id;
+        }
+
+        public Item setId(String id) {
+            this.id = id;
+            return this;
+        }
+
+        /**
+         * The soffit to render, i.e. the <code>{module}</code> of its URL.
+         */
+        public String getModule() {
+            return module;
+        }
+
+        public Item setModule(String module) {
+            this.module = module;
+            return this;
+        }
+
+        /**
+         * Milliseconds the connector will wait for this item, if it said.
+         */
+        public Long getRenderBudget() {
+            return renderBudget;
+        }
+
+        public Item setRenderBudget(Long renderBudget) {
+            this.renderBudget = renderBudget;
+            return this;
+        }
+
+        public Payload getPayload() {
+            return payload;
+        }
+
+        public Item setPayload(Payload payload) {
+            this.payload = payload;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Item [id=" + id + ", module=" + module + ", renderBudget=" + renderBudget
+                    + ", payload=" + payload + "]";
+        }
+
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apereo.portlet.soffit.model.v1_0;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The response to a {@link Batch}:  one {@link Part} for each item, holding
+ * what the soffit would have returned (status, headers, and markup) had it
+ * been invoked on its own.
+ */
+public class BatchResult {
+
+    private List<Part> parts = new ArrayList<>();
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    public BatchResult setParts(List<Part> parts) {
+        this.parts = parts;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult [parts=" + parts + "]";
+    }
+
+    /*
+     * Nested Types
+     */
+
+    public static class Part {
+
+        private String id;
+        private int status;
+        private Map<String,String> headers = new HashMap<>();
+        private String content;
+
+        /**
+         * The id of the corresponding {@link Batch.Item}.
+         */
+        public String getId() {
+            return id;
+        }
+
+        public Part setId(String id) {
+            this.id = id;
+            return this;
+        }
+
+        /**
+         * An HTTP status code.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public Part setStatus(int status) {
+            this.status = status;
+            return this;
+        }
+
+        public Map<String,String> getHeaders() {
+            return headers;
+        }
+
+        public Part setHeaders(Map<String,String> headers) {
+            this.headers = headers;
+            return this;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public Part setContent(String content) {
+            this.content = content;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Part [id=" + id + ", status=" + status + ", headers=" + headers + "]";
+        }
+
+    }
+
+}
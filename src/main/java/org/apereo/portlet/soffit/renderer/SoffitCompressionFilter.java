@@ -0,0 +1,82 @@
+package org.apereo.portlet.soffit.renderer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+/**
+ * Gzip-compresses the markup rendered by the {@link SoffitRendererController}
+ * when the connector accepts it and the markup is at least
+ * <code>minResponseSize</code> bytes.  Like the {@link SoffitEtagFilter}, this
+ * filter applies <em>only</em> to soffit render requests.  The two filters may
+ * be used together in either order.<p>
+ *
+ * Spring Boot Example:
+ *
+ * <pre>
+ * &#64;Bean
+ * public SoffitCompressionFilter soffitCompressionFilter() {
+ *     final SoffitCompressionFilter rslt = new SoffitCompressionFilter();
+ *     rslt.setMinResponseSize(2048);
+ *     return rslt;
+ * }
+ * </pre>
+ */
+public class SoffitCompressionFilter extends OncePerRequestFilter {
+
+    public static final int DEFAULT_MIN_RESPONSE_SIZE = 1024;
+
+    private static final String VARY_HEADER = "Vary";
+
+    private int minResponseSize = DEFAULT_MIN_RESPONSE_SIZE;
+
+    /**
+     * Responses smaller than this many bytes are sent uncompressed.
+     */
+    public void setMinResponseSize(int minResponseSize) {
+        this.minResponseSize = minResponseSize;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        final String acceptEncoding = request.getHeader(SoffitRendererController.ACCEPT_ENCODING_HEADER);
+        return request.getHeader(SoffitRendererController.PAYLOAD_CLASS_HEADER) == null
+                || !StringUtils.containsIgnoreCase(acceptEncoding, SoffitRendererController.GZIP_ENCODING);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+            FilterChain filterChain) throws ServletException, IOException {
+
+        final ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        filterChain.doFilter(request, wrapper);
+
+        response.addHeader(VARY_HEADER, SoffitRendererController.ACCEPT_ENCODING_HEADER);
+        if (wrapper.getStatusCode() != HttpServletResponse.SC_OK || wrapper.getContentSize() < minResponseSize) {
+            wrapper.copyBodyToResponse();
+            return;
+        }
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(wrapper.getContentSize() / 4);
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(wrapper.getContentAsByteArray());
+        }
+        logger.debug("Compressed the response for request URI '" + request.getRequestURI() + "' from "
+                + wrapper.getContentSize() + " to " + compressed.size() + " bytes");
+
+        response.setHeader(SoffitRendererController.CONTENT_ENCODING_HEADER, SoffitRendererController.GZIP_ENCODING);
+        response.setContentLength(compressed.size());
+        compressed.writeTo(response.getOutputStream());
+
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.apereo.portlet.soffit.renderer;
+
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
+
+/**
+ * Computes a strong <code>ETag</code> over the markup rendered by the
+ * {@link SoffitRendererController} and answers conditional requests (those
+ * that specify a matching <code>If-None-Match</code> header) with
+ * <code>304 Not Modified</code> and no body.<p>
+ *
+ * The stock {@link ShallowEtagHeaderFilter} only considers <code>GET</code>
+ * requests;  soffits are rendered in response to a <code>POST</code> from the
+ * <code>SoffitConnectorController</code>.  This filter applies <em>only</em>
+ * to those requests, which are recognized by the presence of the
+ * {@link SoffitRendererController#PAYLOAD_CLASS_HEADER}.<p>
+ *
+ * Spring Boot Example:
+ *
+ * <pre>
+ * &#64;Bean
+ * public SoffitEtagFilter soffitEtagFilter() {
+ *     return new SoffitEtagFilter();
+ * }
+ * </pre>
+ */
+public class SoffitEtagFilter extends ShallowEtagHeaderFilter {
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return request.getHeader(SoffitRendererController.PAYLOAD_CLASS_HEADER) == null;
+    }
+
+    @Override
+    protected boolean isEligibleForEtag(HttpServletRequest request, HttpServletResponse response,
+            int responseStatusCode, InputStream inputStream) {
+        return responseStatusCode >= 200 && responseStatusCode < 300;
+    }
+
+}
@@ -1,14 +1,31 @@
 package org.apereo.portlet.soffit.renderer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apereo.portlet.soffit.model.v1_0.Batch;
+import org.apereo.portlet.soffit.model.v1_0.BatchResult;
 import org.apereo.portlet.soffit.model.v1_0.Payload;
 import org.apereo.portlet.soffit.model.v1_0.Request;
 import org.slf4j.Logger;
@@ -18,12 +35,12 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.servlet.ModelAndView;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 @Controller
 @RequestMapping("/soffit")
@@ -38,14 +55,89 @@ public class SoffitRendererController {
      */
     public static final String PAYLOAD_CLASS_HEADER = "X-Soffit-PayloadClass";
 
+    /**
+     * Name of HTTP header sent by the {@link SoffitConnectorController} to
+     * signal how many milliseconds remain before it stops waiting for the
+     * response.  Requests that arrive with less than
+     * <code>soffit.renderer.minRenderBudget</code> remaining are rejected
+     * without rendering.
+     */
+    public static final String RENDER_BUDGET_HEADER = "X-Soffit-RenderBudget";
+
+    /**
+     * Sent on the 503 responses to requests rejected because their render
+     * budget ran out, so that the {@link SoffitConnectorController} doesn't
+     * hold the rejection against the soffit.
+     */
+    public static final String BUDGET_EXHAUSTED_HEADER = "X-Soffit-BudgetExhausted";
+
+    /**
+     * Sent on responses to declare which parts of the payload the soffit
+     * needs, so that the {@link SoffitConnectorController} can skip the rest
+     * next time.  The value is a comma-separated list of fields, e.g.
+     * <code>request.parameters, user.attributes.displayName</code>.
+     */
+    public static final String PAYLOAD_FIELDS_HEADER = "X-Soffit-PayloadFields";
+
     public static final String CACHE_CONTROL_HEADER = "Cache-Control";
 
+    /**
+     * Sent on responses to name the parts of the request -- parameters,
+     * properties, the locale, or preferences -- that affect the soffit's
+     * output, so the {@link SoffitConnectorController} caches a separate
+     * response for each combination of their values.  (The standard
+     * <code>Vary</code> header refers to HTTP request headers, so it isn't
+     * suitable.)
+     */
+    public static final String VARY_HEADER = "X-Soffit-Vary";
+
+    /**
+     * Sent on responses to attach cache tags (surrogate keys) to them.  The
+     * {@link SoffitConnectorController} indexes cached responses by tag, so
+     * that all the responses with a given tag may be purged at once when the
+     * content they're based on changes.
+     */
+    public static final String CACHE_TAGS_HEADER = "X-Soffit-CacheTags";
+
+    /**
+     * Sent on responses to advertise the URL (an absolute path) to which the
+     * {@link SoffitConnectorController} may send a {@link Batch} to render
+     * several of this application's soffits in one request.
+     */
+    public static final String BATCH_URL_HEADER = "X-Soffit-BatchUrl";
+
+    public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+
+    /**
+     * Sent on responses to advertise the content codings the renderer accepts
+     * for request bodies (RFC 7694).  The {@link SoffitConnectorController}
+     * compresses subsequent payloads only if the soffit advertises support.
+     */
+    public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+
+    public static final String GZIP_ENCODING = "gzip";
+
+    /**
+     * Sent on responses to advertise the (binary) payload formats the renderer
+     * accepts, in addition to JSON.  The {@link SoffitConnectorController}
+     * sends subsequent payloads in a binary format only if the soffit
+     * advertises support.
+     */
+    public static final String PAYLOAD_FORMATS_HEADER = "X-Soffit-PayloadFormats";
+
+    /**
+     * Content type of payloads encoded with Jackson's Smile format (binary
+     * JSON).
+     */
+    public static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
     /**
      * The default value for the <code>Cache-Control</code> header is "no-cache,"
-     * which indicates the response should not be cached (until we later
-     * implement ETag-based caching).  This header value will be sent if the
-     * Soffit does not specify a value for scope or max-age  (they both must be
-     * specified).
+     * which indicates the response may not be reused without revalidation.  If
+     * the {@link SoffitEtagFilter} is in place, the connector will hold onto
+     * the response and revalidate it with <code>If-None-Match</code>.  This
+     * header value will be sent if the Soffit does not specify a value for
+     * scope or max-age  (they both must be specified).
      */
     public static final String CACHE_CONTROL_NOCACHE = "no-cache";
 
@@ -64,8 +156,59 @@ public class SoffitRendererController {
      */
     public static final String CACHE_MAXAGE_PROPERTY_FORMAT = PROPERTY_PREFIX + "%s.cache.max-age";
 
+    /**
+     * Used to create a property key specific to the soffit for the number of
+     * seconds a stale response may be served while the connector fetches a
+     * fresh one in the background (optional).
+     */
+    public static final String CACHE_STALE_WHILE_REVALIDATE_PROPERTY_FORMAT = PROPERTY_PREFIX + "%s.cache.stale-while-revalidate";
+
+    /**
+     * Used to create a property key specific to the soffit for the number of
+     * seconds a stale response may be served when the soffit fails (optional).
+     */
+    public static final String CACHE_STALE_IF_ERROR_PROPERTY_FORMAT = PROPERTY_PREFIX + "%s.cache.stale-if-error";
+
+    /**
+     * Used to create a property key specific to the soffit for the parts of
+     * the request that affect its output (optional).
+     */
+    public static final String CACHE_VARY_PROPERTY_FORMAT = PROPERTY_PREFIX + "%s.cache.vary";
+
+    /**
+     * Used to create a property key specific to the soffit for the cache tags
+     * attached to its responses (optional).
+     */
+    public static final String CACHE_TAGS_PROPERTY_FORMAT = PROPERTY_PREFIX + "%s.cache.tags";
+
+    /**
+     * Used to create a property key specific to the soffit for the parts of
+     * the payload it needs (optional).
+     */
+    public static final String PAYLOAD_FIELDS_PROPERTY_FORMAT = PROPERTY_PREFIX + "%s.payload-fields";
+
     private static final String MODEL_NAME = "soffit";
 
+    /**
+     * Name of the model attribute holding the time (in epoch milliseconds) by
+     * which the connector needs the response, if it specified one.  Views
+     * that make expensive calls may use it to skip or bound them.
+     */
+    private static final String DEADLINE_MODEL_NAME = "soffitDeadline";
+
+    /**
+     * Orders the items in a batch by render budget, so the most urgent are
+     * rendered first;  items without a budget go last.
+     */
+    private static final Comparator<Batch.Item> EARLIEST_DEADLINE_FIRST = new Comparator<Batch.Item>() {
+        @Override
+        public int compare(Batch.Item o1, Batch.Item o2) {
+            final long budget1 = o1.getRenderBudget() != null ? o1.getRenderBudget() : Long.MAX_VALUE;
+            final long budget2 = o2.getRenderBudget() != null ? o2.getRenderBudget() : Long.MAX_VALUE;
+            return Long.compare(budget1, budget2);
+        }
+    };
+
     @Autowired
     private Environment environment;
 
@@ -73,15 +216,34 @@ public class SoffitRendererController {
     private String viewsLocation;
     private final Map<ViewTuple,String> availableViews = new HashMap<>();
 
+    @Value("${soffit.renderer.minRenderBudget:100}")
+    private long minRenderBudget;
+
+    @Value("${soffit.renderer.batchEnabled:true}")
+    private boolean batchEnabled;
+
     final ObjectMapper objectMapper = new ObjectMapper();
+    final ObjectMapper smileObjectMapper = new ObjectMapper(new SmileFactory());
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
     @RequestMapping(value="/{module}", method=RequestMethod.POST)
     public ModelAndView render(final HttpServletRequest req, final HttpServletResponse res,
-            final @PathVariable String module, final @RequestBody String soffitJson) {
-
-        logger.debug("Rendering for request URI '{}', soffitJson={}", req.getRequestURI(), soffitJson);
+            final @PathVariable String module) {
+
+        // Don't bother rendering if the connector won't wait for the response
+        final Long renderBudget = getRenderBudget(req);
+        if (renderBudget != null && renderBudget < minRenderBudget) {
+            logger.warn("Rejecting request URI '{}' with a render budget of {}ms", req.getRequestURI(), renderBudget);
+            try {
+                res.setHeader(BUDGET_EXHAUSTED_HEADER, Boolean.TRUE.toString());
+                res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } catch (IOException e) {
+                logger.debug("Unable to send an error for request URI '{}'", req.getRequestURI(), e);
+            }
+            return null;
+        }
+        final long receivedAt = System.currentTimeMillis();
 
         String payloadClassName = null;
         try {
@@ -95,7 +257,15 @@ public class SoffitRendererController {
             logger.debug("Selected payloadClass '{}' for request URI '{}'", payloadClass, req.getRequestURI());
 
             // Deserialize the payload
-            final Object soffit = objectMapper.readValue(soffitJson, payloadClass);
+            final Object soffit = readPayload(req, payloadClass);
+            logger.debug("Rendering for request URI '{}', soffit={}", req.getRequestURI(), soffit);
+
+            // Let the connector know it may compress (or encode) the payload next time
+            configurePayloadHeaders(res);
+            configurePayloadFieldsHeader(res, module);
+            if (batchEnabled) {
+                res.setHeader(BATCH_URL_HEADER, StringUtils.removeEnd(req.getRequestURI(), "/" + module));
+            }
 
             // Select a view
             final String viewName = selectView(req, module, soffit);
@@ -103,10 +273,14 @@ public class SoffitRendererController {
             // Set up cache headers appropriately
             configureCacheHeaders(res, module);
 
-            return new ModelAndView(viewName.toString(), MODEL_NAME, soffit);
+            final ModelAndView rslt = new ModelAndView(viewName.toString(), MODEL_NAME, soffit);
+            if (renderBudget != null) {
+                rslt.addObject(DEADLINE_MODEL_NAME, receivedAt + renderBudget);
+            }
+            return rslt;
 
         } catch (IOException e) {
-            final String msg = "Request body was not JSON or was not a valid SoffitRequest";
+            final String msg = "Request body was not JSON (or Smile) or was not a valid SoffitRequest";
             throw new IllegalArgumentException(msg, e);
         } catch (ClassNotFoundException e) {
             final String msg = "Unable to locate the specified PayloadClass:  " + payloadClassName;
@@ -115,10 +289,148 @@ public class SoffitRendererController {
 
     }
 
+    /**
+     * Renders every item in a {@link Batch} (in turn, earliest deadline first)
+     * and returns the results together as a {@link BatchResult}.  An item that
+     * fails gets an error status;  an item whose render budget runs out before
+     * its turn gets a 503 with the {@link #BUDGET_EXHAUSTED_HEADER}, which
+     * the connector treats as unanswered.  The others are unaffected.
+     */
+    @RequestMapping(method=RequestMethod.POST)
+    public void renderBatch(final HttpServletRequest req, final HttpServletResponse res) throws IOException {
+
+        if (!batchEnabled) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final long receivedAt = System.currentTimeMillis();
+
+        final Batch batch;
+        try {
+            batch = (Batch) readPayload(req, Batch.class);
+        } catch (IOException e) {
+            final String msg = "Request body was not JSON (or Smile) or was not a valid Batch";
+            throw new IllegalArgumentException(msg, e);
+        }
+        logger.debug("Rendering a batch of {} soffits for request URI '{}'", batch.getItems().size(), req.getRequestURI());
+
+        final List<Batch.Item> items = new ArrayList<>(batch.getItems());
+        Collections.sort(items, EARLIEST_DEADLINE_FIRST);
+        final BatchResult rslt = new BatchResult();
+        for (Batch.Item item : items) {
+            rslt.getParts().add(renderBatchItem(req, res, batch, item, receivedAt));
+        }
+
+        configurePayloadHeaders(res);
+        res.setContentType("application/json");
+        res.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        objectMapper.writeValue(res.getOutputStream(), rslt);
+
+    }
+
     /*
      * Implementation
      */
 
+    private BatchResult.Part renderBatchItem(final HttpServletRequest req, final HttpServletResponse res,
+            final Batch batch, final Batch.Item item, final long receivedAt) {
+
+        final BatchResult.Part rslt = new BatchResult.Part().setId(item.getId());
+        final String module = item.getModule();
+
+        final Long renderBudget = item.getRenderBudget();
+        if (renderBudget != null && receivedAt + renderBudget - System.currentTimeMillis() < minRenderBudget) {
+            logger.warn("Skipping module '{}' in a batch because its render budget ran out", module);
+            rslt.getHeaders().put(BUDGET_EXHAUSTED_HEADER, Boolean.TRUE.toString());
+            return rslt.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+
+        final BatchPartResponse partResponse = new BatchPartResponse(res);
+        try {
+            final Payload soffit = batch.getPayload(item);
+            logger.debug("Rendering module '{}' in a batch, soffit={}", module, soffit);
+            configurePayloadFieldsHeader(partResponse, module);
+            final String viewName = selectView(req, module, soffit);
+            configureCacheHeaders(partResponse, module);
+
+            // Expose the model as InternalResourceView would
+            req.setAttribute(MODEL_NAME, soffit);
+            if (renderBudget != null) {
+                req.setAttribute(DEADLINE_MODEL_NAME, receivedAt + renderBudget);
+            }
+            req.getRequestDispatcher(viewName).include(req, partResponse);
+
+            rslt.setStatus(HttpServletResponse.SC_OK)
+                    .setHeaders(partResponse.getHeaders())
+                    .setContent(partResponse.getContent());
+        } catch (ServletException | IOException | RuntimeException e) {
+            logger.error("Failed to render module '{}' in a batch", module, e);
+            rslt.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            req.removeAttribute(MODEL_NAME);
+            req.removeAttribute(DEADLINE_MODEL_NAME);
+        }
+
+        return rslt;
+
+    }
+
+    /**
+     * Lets the connector know how it may compress (or encode) payloads.
+     */
+    private void configurePayloadHeaders(final HttpServletResponse res) {
+        res.setHeader(ACCEPT_ENCODING_HEADER, GZIP_ENCODING);
+        res.setHeader(PAYLOAD_FORMATS_HEADER, SMILE_CONTENT_TYPE);
+    }
+
+    private void configurePayloadFieldsHeader(final HttpServletResponse res, final String module) {
+        final String payloadFields = environment.getProperty(String.format(PAYLOAD_FIELDS_PROPERTY_FORMAT, module));
+        if (StringUtils.isNotBlank(payloadFields)) {
+            res.setHeader(PAYLOAD_FIELDS_HEADER, payloadFields);
+        }
+    }
+
+    /**
+     * Returns the number of milliseconds the connector will wait for the
+     * response, or null if it didn't say.
+     */
+    private Long getRenderBudget(final HttpServletRequest req) {
+        final String value = req.getHeader(RENDER_BUDGET_HEADER);
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring invalid value '{}' for HTTP Header '{}'", value, RENDER_BUDGET_HEADER);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the payload from the request body, which may be gzip-compressed.
+     * Payloads are UTF-8 JSON unless the request specifies a different
+     * charset (older connectors send ISO-8859-1), or Smile if the request
+     * specifies that content type.
+     */
+    private Object readPayload(final HttpServletRequest req, final Class<?> payloadClass) throws IOException {
+
+        InputStream body = req.getInputStream();
+        if (GZIP_ENCODING.equalsIgnoreCase(req.getHeader(CONTENT_ENCODING_HEADER))) {
+            body = new GZIPInputStream(body);
+        }
+
+        if (StringUtils.startsWithIgnoreCase(req.getContentType(), SMILE_CONTENT_TYPE)) {
+            return smileObjectMapper.readValue(body, payloadClass);
+        }
+
+        final String charset = req.getCharacterEncoding();
+        return charset == null || StandardCharsets.UTF_8.name().equalsIgnoreCase(charset)
+                ? objectMapper.readValue(body, payloadClass)
+                : objectMapper.readValue(new InputStreamReader(body, charset), payloadClass);
+
+    }
+
     private void configureCacheHeaders(final HttpServletResponse res, final String module) {
 
         final String cacheScopeProperty = String.format(CACHE_SCOPE_PROPERTY_FORMAT, module);
@@ -130,13 +442,37 @@ public class SoffitRendererController {
         logger.debug("Selecting cacheMaxAgeValue='{}' for property '{}'", cacheMaxAgeValue, cacheMaxAgeProperty);
 
         // Both must be specified, else we just use the default...
-        final String cacheControl = (StringUtils.isNotEmpty(cacheScopeValue) && StringUtils.isNotEmpty(cacheMaxAgeValue))
+        String cacheControl = (StringUtils.isNotEmpty(cacheScopeValue) && StringUtils.isNotEmpty(cacheMaxAgeValue))
                 ? cacheScopeValue + ", max-age=" + cacheMaxAgeValue
                 : CACHE_CONTROL_NOCACHE;
+
+        // The stale-* extensions are optional and only make sense for cached content
+        if (!CACHE_CONTROL_NOCACHE.equals(cacheControl)) {
+            final String staleWhileRevalidateValue = environment.getProperty(
+                    String.format(CACHE_STALE_WHILE_REVALIDATE_PROPERTY_FORMAT, module));
+            if (StringUtils.isNotEmpty(staleWhileRevalidateValue)) {
+                cacheControl += ", stale-while-revalidate=" + staleWhileRevalidateValue;
+            }
+            final String staleIfErrorValue = environment.getProperty(
+                    String.format(CACHE_STALE_IF_ERROR_PROPERTY_FORMAT, module));
+            if (StringUtils.isNotEmpty(staleIfErrorValue)) {
+                cacheControl += ", stale-if-error=" + staleIfErrorValue;
+            }
+        }
         logger.debug("Setting cache-control='{}' for module '{}'", cacheControl, module);
 
         res.setHeader(CACHE_CONTROL_HEADER, cacheControl);
 
+        final String varyValue = environment.getProperty(String.format(CACHE_VARY_PROPERTY_FORMAT, module));
+        if (StringUtils.isNotEmpty(varyValue)) {
+            res.setHeader(VARY_HEADER, varyValue);
+        }
+
+        final String tagsValue = environment.getProperty(String.format(CACHE_TAGS_PROPERTY_FORMAT, module));
+        if (StringUtils.isNotEmpty(tagsValue)) {
+            res.setHeader(CACHE_TAGS_HEADER, tagsValue);
+        }
+
     }
 
     private String selectView(final HttpServletRequest req, final String module, final Object payload) {
@@ -222,6 +558,98 @@ public class SoffitRendererController {
      * Nested Types
      */
 
+    /**
+     * Captures the headers and markup of one item in a batch, instead of
+     * passing them to the (shared) response.  Markup is captured as UTF-8.
+     */
+    private static final class BatchPartResponse extends HttpServletResponseWrapper {
+
+        private final Map<String,String> headers = new LinkedHashMap<>();
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private PrintWriter writer;
+        private ServletOutputStream outputStream;
+
+        public BatchPartResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        public Map<String,String> getHeaders() {
+            return headers;
+        }
+
+        public String getContent() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return new String(content.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            final String existing = headers.get(name);
+            headers.put(name, existing != null ? existing + ", " + value : value);
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return StandardCharsets.UTF_8.name();
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(content, StandardCharsets.UTF_8));
+            }
+            return writer;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        content.write(b);
+                    }
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        content.write(b, off, len);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public void flushBuffer() {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            flushBuffer();
+            content.reset();
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+    }
+
     private static final class ViewTuple {
 
         private final String moduleName;